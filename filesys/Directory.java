@@ -0,0 +1,136 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A directory: a file whose data is a table of fixed-size entries, each
+ * naming an inode. An entry holds the inode number plus one, so that an entry
+ * of zeros is free, followed by a name of up to <tt>maxNameLength</tt>
+ * bytes, padded with zeros.
+ *
+ * <p>
+ * A <tt>Directory</tt> reads the whole table when it is allocated and writes
+ * back each entry it changes. The caller must hold the file system's
+ * namespace lock for as long as it uses the directory.
+ */
+class Directory {
+    /**
+     * Read a directory.
+     *
+     * @param	fileSystem	the file system the directory belongs to.
+     * @param	inode	the inode of the directory.
+     */
+    Directory(DiskFileSystem fileSystem, Inode inode) {
+	this.fileSystem = fileSystem;
+	this.inode = inode;
+
+	table = new byte[inode.length];
+	Lib.assertTrue(fileSystem.readData(inode, 0, table, 0, table.length)
+		       == table.length);
+    }
+
+    /**
+     * Test whether a string can be used as the name of a directory entry.
+     */
+    static boolean checkName(String name) {
+	return name.length() > 0 && name.length() <= maxNameLength
+	    && name.getBytes().length == name.length();
+    }
+
+    /**
+     * Return the inode number of the entry with the specified name.
+     *
+     * @param	name	the name to look up.
+     * @return	the inode number, or -1 if there is no such entry.
+     */
+    int lookup(String name) {
+	int entry = find(name);
+	return (entry < 0) ? -1 : getInumber(entry);
+    }
+
+    /**
+     * Add an entry, reusing a free one if there is any.
+     *
+     * @param	name	the name of the new entry.
+     * @param	inumber	the inode it names.
+     * @return	<tt>true</tt> if the entry was written.
+     */
+    boolean add(String name, int inumber) {
+	int entry = 0;
+	while (entry < getNumEntries() && getInumber(entry) >= 0)
+	    entry++;
+
+	byte[] data = new byte[entrySize];
+	Lib.bytesFromInt(data, 0, inumber+1);
+	byte[] nameBytes = name.getBytes();
+	System.arraycopy(nameBytes, 0, data, 4, nameBytes.length);
+
+	return write(entry, data);
+    }
+
+    /**
+     * Free the entry with the specified name.
+     *
+     * @param	name	the name of the entry.
+     * @return	<tt>true</tt> if the entry was found and freed.
+     */
+    boolean remove(String name) {
+	int entry = find(name);
+	return entry >= 0 && write(entry, new byte[entrySize]);
+    }
+
+    /**
+     * Test whether this directory has no entries in use.
+     */
+    boolean isEmpty() {
+	for (int entry=0; entry<getNumEntries(); entry++) {
+	    if (getInumber(entry) >= 0)
+		return false;
+	}
+	return true;
+    }
+
+    private int find(String name) {
+	for (int entry=0; entry<getNumEntries(); entry++) {
+	    if (getInumber(entry) >= 0 && getName(entry).equals(name))
+		return entry;
+	}
+	return -1;
+    }
+
+    private boolean write(int entry, byte[] data) {
+	if (fileSystem.writeData(inode, entry*entrySize, data, 0, entrySize)
+	    != entrySize)
+	    return false;
+
+	if (table.length < (entry+1)*entrySize) {
+	    byte[] grown = new byte[(entry+1)*entrySize];
+	    System.arraycopy(table, 0, grown, 0, table.length);
+	    table = grown;
+	}
+	System.arraycopy(data, 0, table, entry*entrySize, entrySize);
+	return true;
+    }
+
+    private int getNumEntries() {
+	return table.length / entrySize;
+    }
+
+    private int getInumber(int entry) {
+	return Lib.bytesToInt(table, entry*entrySize) - 1;
+    }
+
+    private String getName(int entry) {
+	return Lib.bytesToString(table, entry*entrySize + 4, maxNameLength);
+    }
+
+    private DiskFileSystem fileSystem;
+    private Inode inode;
+    private byte[] table;
+
+    /** The number of bytes a directory entry takes. */
+    static final int entrySize = 32;
+    /** The longest name a directory entry can hold. */
+    static final int maxNameLength = entrySize - 4;
+}
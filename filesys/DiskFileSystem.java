@@ -0,0 +1,734 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * A file system stored on the simulated disk. The disk is laid out as
+ *
+ * <pre>
+ * | superblock | free-space bitmap | inode table | data ... |
+ * </pre>
+ *
+ * The superblock, in sector 0, records the size of the disk and of the inode
+ * table. Each file and directory has an inode describing the extents that
+ * hold its data, and inode 0 is the root directory. Names are paths of
+ * directory entries separated by <tt>/</tt>, relative to the root.
+ *
+ * <p>
+ * The file system is mounted the first time it is used, since the disk can
+ * only be read once threads are running. If the disk does not hold a file
+ * system of the configured shape, or <tt>DiskFileSystem.format</tt> is true,
+ * the disk is formatted first. <tt>DiskFileSystem.copyIn</tt> may then list
+ * files, separated by commas, to copy from the stub file system if they are
+ * not already on the disk; this is how user programs get onto a new disk.
+ *
+ * <p>
+ * Reads and writes go straight to the disk; put a
+ * <tt>CachedFileSystem</tt> in front of this one to cache them. The data of a
+ * file is accessed under the file's own lock, so that different files can
+ * have disk requests outstanding at the same time. Directories and the set of
+ * open inodes are protected by the namespace lock, and the free-space bitmap
+ * and inode table by the metadata lock, which is always acquired last.
+ */
+public class DiskFileSystem implements FileSystem {
+    /**
+     * Allocate a new disk file system.
+     */
+    public DiskFileSystem() {
+	Lib.assertTrue(Machine.disk() != null,
+		       "DiskFileSystem requires Machine.disk");
+
+	disk = new SynchDisk(Machine.disk());
+
+	numInodes = Config.getInteger("DiskFileSystem.numInodes", 64);
+	Lib.assertTrue(numInodes > 0);
+
+	freeMapStart = 1;
+	inodeStart = freeMapStart + FreeMap.getSize(disk.getNumSectors());
+	dataStart = inodeStart
+	    + (numInodes + inodesPerSector - 1) / inodesPerSector;
+	Lib.assertTrue(dataStart < disk.getNumSectors(),
+		       "disk too small for DiskFileSystem.numInodes");
+
+	freeMap = new FreeMap(disk, freeMapStart);
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	mount();
+
+	String[] path = split(name);
+	if (path == null)
+	    return null;
+
+	lock.acquire();
+
+	Inode inode = null;
+	Inode dir = walk(path, path.length-1);
+	if (dir != null) {
+	    Directory directory = new Directory(this, dir);
+	    int inumber = directory.lookup(path[path.length-1]);
+
+	    if (inumber >= 0) {
+		inode = getInode(inumber);
+		if (inode.type != Inode.typeFile) {
+		    putInode(inode);
+		    inode = null;
+		}
+	    }
+	    else if (truncate) {
+		inode = allocateInode(Inode.typeFile);
+		if (inode != null &&
+		    !directory.add(path[path.length-1], inode.inumber)) {
+		    inode.removed = true;
+		    putInode(inode);
+		    inode = null;
+		}
+	    }
+
+	    putInode(dir);
+	}
+
+	lock.release();
+
+	if (inode == null)
+	    return null;
+
+	if (truncate && inode.numExtents > 0) {
+	    inode.lock.acquire();
+	    metaLock.acquire();
+	    freeExtents(inode);
+	    inode.length = 0;
+	    writeInode(inode);
+	    metaLock.release();
+	    inode.lock.release();
+	}
+
+	return new DiskOpenFile(name, inode);
+    }
+
+    public boolean remove(String name) {
+	mount();
+
+	String[] path = split(name);
+	if (path == null)
+	    return false;
+
+	lock.acquire();
+
+	boolean removed = false;
+	Inode dir = walk(path, path.length-1);
+	if (dir != null) {
+	    Directory directory = new Directory(this, dir);
+	    int inumber = directory.lookup(path[path.length-1]);
+
+	    if (inumber >= 0) {
+		Inode inode = getInode(inumber);
+		if (inode.type != Inode.typeDirectory ||
+		    new Directory(this, inode).isEmpty()) {
+		    removed = directory.remove(path[path.length-1]);
+		    inode.removed = removed;
+		}
+		putInode(inode);
+	    }
+
+	    putInode(dir);
+	}
+
+	lock.release();
+	return removed;
+    }
+
+    /**
+     * Create a directory. Its parent must already exist.
+     *
+     * @param	name	the path of the new directory.
+     * @return	<tt>true</tt> if the directory was created.
+     */
+    public boolean mkdir(String name) {
+	mount();
+
+	String[] path = split(name);
+	if (path == null)
+	    return false;
+
+	lock.acquire();
+
+	boolean created = false;
+	Inode dir = walk(path, path.length-1);
+	if (dir != null) {
+	    Directory directory = new Directory(this, dir);
+
+	    if (directory.lookup(path[path.length-1]) < 0) {
+		Inode inode = allocateInode(Inode.typeDirectory);
+		if (inode != null) {
+		    created = directory.add(path[path.length-1], inode.inumber);
+		    inode.removed = !created;
+		    putInode(inode);
+		}
+	    }
+
+	    putInode(dir);
+	}
+
+	lock.release();
+	return created;
+    }
+
+    /**
+     * Return a one-line summary of the file system's use, for printing with
+     * the kernel's statistics.
+     */
+    public String getStatistics() {
+	return "free sectors " + freeMap.getNumFree()
+	    + ", " + disk.getStatistics();
+    }
+
+    /**
+     * Read from a file or directory. The caller must hold the inode's lock,
+     * or for a directory the namespace lock.
+     *
+     * @return	the number of bytes read, or -1 on error.
+     */
+    int readData(Inode inode, int pos, byte[] buf, int offset, int length) {
+	if (pos < 0 || length < 0)
+	    return -1;
+
+	int end = Math.min(pos+length, inode.length);
+	int amount = 0;
+	byte[] sector = null;
+
+	while (pos+amount < end) {
+	    int block = (pos+amount) / sectorSize;
+	    int inSector = (pos+amount) % sectorSize;
+	    int n = Math.min(sectorSize-inSector, end-(pos+amount));
+
+	    if (n == sectorSize) {
+		disk.readSector(inode.getSector(block), buf, offset+amount);
+	    }
+	    else {
+		if (sector == null)
+		    sector = new byte[sectorSize];
+		disk.readSector(inode.getSector(block), sector, 0);
+		System.arraycopy(sector, inSector, buf, offset+amount, n);
+	    }
+
+	    amount += n;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Write to a file or directory, allocating space as it grows. Any gap
+     * between the old end of the file and <tt>pos</tt> is filled with zeros.
+     * The caller must hold the inode's lock, or for a directory the namespace
+     * lock.
+     *
+     * @return	the number of bytes written, which is less than
+     *		<tt>length</tt> if the disk is full, or -1 on error.
+     */
+    int writeData(Inode inode, int pos, byte[] buf, int offset, int length) {
+	if (pos < 0 || length < 0)
+	    return -1;
+
+	if (pos > inode.length) {
+	    byte[] zeros = new byte[sectorSize];
+	    while (inode.length < pos) {
+		int n = Math.min(sectorSize - inode.length%sectorSize,
+				 pos - inode.length);
+		if (writeData(inode, inode.length, zeros, 0, n) != n)
+		    return -1;
+	    }
+	}
+
+	int end = pos+length;
+	if (!allocate(inode, (end + sectorSize - 1) / sectorSize))
+	    end = Math.min(end, inode.getNumSectors() * sectorSize);
+
+	int amount = 0;
+	byte[] sector = null;
+
+	while (pos+amount < end) {
+	    int block = (pos+amount) / sectorSize;
+	    int inSector = (pos+amount) % sectorSize;
+	    int n = Math.min(sectorSize-inSector, end-(pos+amount));
+
+	    if (n == sectorSize) {
+		disk.writeSector(inode.getSector(block), buf, offset+amount);
+	    }
+	    else {
+		// keep the part of the sector we are not writing, but only as
+		// far as the old end of the file
+		if (sector == null)
+		    sector = new byte[sectorSize];
+		int valid = inode.length - block*sectorSize;
+		if (valid > 0)
+		    disk.readSector(inode.getSector(block), sector, 0);
+		if (valid < sectorSize)
+		    Arrays.fill(sector, Math.max(valid, 0), sectorSize, (byte) 0);
+
+		System.arraycopy(buf, offset+amount, sector, inSector, n);
+		disk.writeSector(inode.getSector(block), sector, 0);
+	    }
+
+	    amount += n;
+	}
+
+	if (pos+amount > inode.length) {
+	    metaLock.acquire();
+	    inode.length = pos+amount;
+	    writeInode(inode);
+	    metaLock.release();
+	}
+
+	return (amount == 0 && length > 0) ? -1 : amount;
+    }
+
+    /**
+     * Allocate sectors to a file until it has at least <tt>numSectors</tt>,
+     * growing its last extent when the sectors after it are free. A growing
+     * file is given extra sectors in proportion to its size, up to
+     * <tt>maxPreallocation</tt>, so that files written at the same time do
+     * not break each other into many small extents.
+     *
+     * @return	<tt>true</tt> if the file now has enough sectors.
+     */
+    private boolean allocate(Inode inode, int numSectors) {
+	int needed = numSectors - inode.getNumSectors();
+	if (needed <= 0)
+	    return true;
+
+	int wanted = Math.max(needed, Math.min(inode.getNumSectors(),
+					       maxPreallocation));
+
+	metaLock.acquire();
+
+	while (needed > 0) {
+	    int last = inode.numExtents-1;
+	    if (last >= 0) {
+		int got = freeMap.extend(inode.start[last]+inode.count[last],
+					 wanted);
+		inode.count[last] += got;
+		inode.indirectDirty |= (got > 0 && last >= Inode.numDirect);
+		needed -= got;
+		wanted -= got;
+		if (needed <= 0)
+		    break;
+	    }
+
+	    if (inode.numExtents == Inode.maxExtents)
+		break;
+
+	    // a file's first extent beyond the inode needs the indirect sector
+	    if (inode.numExtents == Inode.numDirect && inode.indirect == 0) {
+		int indirect = freeMap.find(1);
+		if (indirect < 0)
+		    break;
+		freeMap.extend(indirect, 1);
+		inode.indirect = indirect;
+	    }
+
+	    int first = freeMap.find(wanted);
+	    if (first < 0)
+		break;
+
+	    inode.start[last+1] = first;
+	    inode.count[last+1] = freeMap.extend(first, wanted);
+	    inode.indirectDirty |= (last+1 >= Inode.numDirect);
+	    inode.numExtents++;
+	    needed -= inode.count[last+1];
+	    wanted -= inode.count[last+1];
+	}
+
+	freeMap.save();
+	writeInode(inode);
+
+	metaLock.release();
+
+	if (needed > 0)
+	    Lib.debug(dbgFilesys, "out of space for inode " + inode.inumber);
+	return needed <= 0;
+    }
+
+    /**
+     * Free all of an inode's sectors. The caller must hold the metadata lock.
+     */
+    private void freeExtents(Inode inode) {
+	for (int i=0; i<inode.numExtents; i++)
+	    freeMap.mark(inode.start[i], inode.count[i], false);
+	inode.numExtents = 0;
+
+	if (inode.indirect != 0) {
+	    freeMap.mark(inode.indirect, 1, false);
+	    inode.indirect = 0;
+	}
+	freeMap.save();
+    }
+
+    /**
+     * Split a name into path components.
+     *
+     * @return	the components, or <tt>null</tt> if the name is not valid.
+     */
+    private static String[] split(String name) {
+	if (name.startsWith("/"))
+	    name = name.substring(1);
+
+	String[] path = name.split("/", -1);
+	for (int i=0; i<path.length; i++) {
+	    if (!Directory.checkName(path[i]) || path[i].indexOf('\0') >= 0)
+		return null;
+	}
+	return path;
+    }
+
+    /**
+     * Follow the first <tt>length</tt> components of a path from the root.
+     * The caller must hold the namespace lock, and must release the returned
+     * inode with <tt>putInode()</tt>.
+     *
+     * @return	the directory reached, or <tt>null</tt> if a component does
+     *		not exist or is not a directory.
+     */
+    private Inode walk(String[] path, int length) {
+	Inode dir = getInode(rootInumber);
+
+	for (int i=0; i<length; i++) {
+	    int inumber = new Directory(this, dir).lookup(path[i]);
+	    putInode(dir);
+	    if (inumber < 0)
+		return null;
+
+	    dir = getInode(inumber);
+	    if (dir.type != Inode.typeDirectory) {
+		putInode(dir);
+		return null;
+	    }
+	}
+
+	return dir;
+    }
+
+    /**
+     * Return an inode, reading it from the disk if it is not in use, and
+     * count another use of it. The caller must hold the namespace lock.
+     */
+    private Inode getInode(int inumber) {
+	Inode inode = inodes.get(inumber);
+	if (inode == null) {
+	    byte[] data = new byte[sectorSize];
+	    disk.readSector(getInodeSector(inumber), data, 0);
+
+	    inode = new Inode(inumber);
+	    inode.decode(data, getInodeOffset(inumber));
+	    if (inode.numExtents > Inode.numDirect) {
+		disk.readSector(inode.indirect, data, 0);
+		inode.decodeIndirect(data);
+	    }
+	    inodes.put(inumber, inode);
+	}
+
+	inode.numOpen++;
+	return inode;
+    }
+
+    /**
+     * Stop using an inode. An inode that is no longer in use is forgotten,
+     * and freed if it has been removed. The caller must hold the namespace
+     * lock.
+     */
+    private void putInode(Inode inode) {
+	Lib.assertTrue(inode.numOpen > 0);
+	if (--inode.numOpen > 0)
+	    return;
+
+	inodes.remove(inode.inumber);
+
+	if (inode.removed) {
+	    metaLock.acquire();
+	    freeExtents(inode);
+	    inode.type = Inode.typeFree;
+	    inode.length = 0;
+	    writeInode(inode);
+	    metaLock.release();
+
+	    usedInodes.clear(inode.inumber);
+	}
+	else if (inode.getNumSectors() > (inode.length+sectorSize-1)/sectorSize) {
+	    metaLock.acquire();
+	    trimExtents(inode);
+	    writeInode(inode);
+	    metaLock.release();
+	}
+    }
+
+    /**
+     * Free the sectors allocated to an inode beyond the end of its data. The
+     * caller must hold the metadata lock.
+     */
+    private void trimExtents(Inode inode) {
+	int keep = (inode.length + sectorSize - 1) / sectorSize;
+
+	int numExtents = 0;
+	for (int i=0; i<inode.numExtents; i++) {
+	    int kept = Math.min(keep, inode.count[i]);
+	    if (kept < inode.count[i]) {
+		freeMap.mark(inode.start[i]+kept, inode.count[i]-kept, false);
+		inode.count[i] = kept;
+		inode.indirectDirty |= (i >= Inode.numDirect);
+	    }
+	    if (kept > 0)
+		numExtents = i+1;
+	    keep -= kept;
+	}
+	inode.numExtents = numExtents;
+
+	if (numExtents <= Inode.numDirect && inode.indirect != 0) {
+	    freeMap.mark(inode.indirect, 1, false);
+	    inode.indirect = 0;
+	    inode.indirectDirty = false;
+	}
+	freeMap.save();
+    }
+
+    /**
+     * Allocate a new, empty inode and count a use of it. The caller must hold
+     * the namespace lock.
+     *
+     * @return	the inode, or <tt>null</tt> if the inode table is full.
+     */
+    private Inode allocateInode(int type) {
+	int inumber = usedInodes.nextClearBit(0);
+	if (inumber >= numInodes)
+	    return null;
+
+	usedInodes.set(inumber);
+
+	Inode inode = new Inode(inumber);
+	inode.type = type;
+	inodes.put(inumber, inode);
+	inode.numOpen++;
+
+	metaLock.acquire();
+	writeInode(inode);
+	metaLock.release();
+
+	return inode;
+    }
+
+    /**
+     * Write an inode to the inode table, and its indirect sector if that has
+     * changed. The caller must hold the metadata lock, since other inodes
+     * share the sector.
+     */
+    private void writeInode(Inode inode) {
+	Lib.assertTrue(metaLock.isHeldByCurrentThread());
+
+	byte[] data = new byte[sectorSize];
+
+	if (inode.indirectDirty) {
+	    inode.encodeIndirect(data);
+	    disk.writeSector(inode.indirect, data, 0);
+	    inode.indirectDirty = false;
+	}
+
+	disk.readSector(getInodeSector(inode.inumber), data, 0);
+	inode.encode(data, getInodeOffset(inode.inumber));
+	disk.writeSector(getInodeSector(inode.inumber), data, 0);
+    }
+
+    private int getInodeSector(int inumber) {
+	return inodeStart + inumber/inodesPerSector;
+    }
+
+    private int getInodeOffset(int inumber) {
+	return (inumber%inodesPerSector) * Inode.size;
+    }
+
+    /**
+     * Mount the file system if this is its first use.
+     */
+    private void mount() {
+	lock.acquire();
+	if (mounted) {
+	    lock.release();
+	    return;
+	}
+	mounted = true;
+
+	byte[] data = new byte[sectorSize];
+	disk.readSector(superblockSector, data, 0);
+
+	if (Config.getBoolean("DiskFileSystem.format", false) ||
+	    Lib.bytesToInt(data, 0) != magic ||
+	    Lib.bytesToInt(data, 4) != disk.getNumSectors() ||
+	    Lib.bytesToInt(data, 8) != numInodes) {
+	    format();
+	}
+	else {
+	    freeMap.load();
+
+	    for (int inumber=0; inumber<numInodes; inumber++) {
+		if (inumber%inodesPerSector == 0)
+		    disk.readSector(getInodeSector(inumber), data, 0);
+
+		Inode inode = new Inode(inumber);
+		inode.decode(data, getInodeOffset(inumber));
+		if (inode.type != Inode.typeFree)
+		    usedInodes.set(inumber);
+	    }
+	}
+
+	lock.release();
+
+	copyIn();
+    }
+
+    /**
+     * Write an empty file system to the disk. The caller must hold the
+     * namespace lock.
+     */
+    private void format() {
+	Lib.debug(dbgFilesys, "formatting disk");
+
+	byte[] data = new byte[sectorSize];
+	for (int sector=inodeStart; sector<dataStart; sector++)
+	    disk.writeSector(sector, data, 0);
+
+	metaLock.acquire();
+	freeMap.mark(0, disk.getNumSectors(), false);
+	freeMap.mark(0, dataStart, true);
+	freeMap.save();
+	metaLock.release();
+
+	usedInodes.clear();
+	Lib.assertTrue(allocateInode(Inode.typeDirectory).inumber
+		       == rootInumber);
+	putInode(inodes.get(rootInumber));
+
+	Lib.bytesFromInt(data, 0, magic);
+	Lib.bytesFromInt(data, 4, disk.getNumSectors());
+	Lib.bytesFromInt(data, 8, numInodes);
+	disk.writeSector(superblockSector, data, 0);
+    }
+
+    /**
+     * Copy the files listed in <tt>DiskFileSystem.copyIn</tt> from the stub
+     * file system, skipping those already on the disk.
+     */
+    private void copyIn() {
+	String names = Config.getString("DiskFileSystem.copyIn");
+	if (names == null || Machine.stubFileSystem() == null)
+	    return;
+
+	byte[] buf = new byte[1024];
+
+	String[] list = names.split(",");
+	for (int i=0; i<list.length; i++) {
+	    String name = list[i].trim();
+	    if (name.length() == 0)
+		continue;
+
+	    OpenFile existing = open(name, false);
+	    if (existing != null) {
+		existing.close();
+		continue;
+	    }
+
+	    OpenFile from = Machine.stubFileSystem().open(name, false);
+	    OpenFile to = open(name, true);
+	    if (from == null || to == null) {
+		Lib.debug(dbgFilesys, "unable to copy in " + name);
+	    }
+	    else {
+		int amount;
+		while ((amount = from.read(buf, 0, buf.length)) > 0)
+		    to.write(buf, 0, amount);
+		Lib.debug(dbgFilesys, "copied in " + name);
+	    }
+
+	    if (from != null)
+		from.close();
+	    if (to != null)
+		to.close();
+	}
+    }
+
+    private class DiskOpenFile extends OpenFileWithPosition {
+	DiskOpenFile(String name, Inode inode) {
+	    super(DiskFileSystem.this, name);
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open || offset < 0 || length < 0 ||
+		offset+length > buf.length)
+		return -1;
+
+	    inode.lock.acquire();
+	    int amount = readData(inode, pos, buf, offset, length);
+	    inode.lock.release();
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open || offset < 0 || length < 0 ||
+		offset+length > buf.length)
+		return -1;
+
+	    inode.lock.acquire();
+	    int amount = writeData(inode, pos, buf, offset, length);
+	    inode.lock.release();
+	    return amount;
+	}
+
+	public int length() {
+	    if (!open)
+		return -1;
+
+	    return inode.length;
+	}
+
+	public void close() {
+	    if (!open)
+		return;
+
+	    open = false;
+
+	    lock.acquire();
+	    putInode(inode);
+	    lock.release();
+	}
+
+	private Inode inode;
+	private boolean open = true;
+    }
+
+    private SynchDisk disk;
+    private FreeMap freeMap;
+    private int numInodes;
+    private int freeMapStart, inodeStart, dataStart;
+
+    private boolean mounted = false;
+    private HashMap<Integer, Inode> inodes = new HashMap<Integer, Inode>();
+    private BitSet usedInodes = new BitSet();
+
+    /** Protects directories, the set of inodes in use, and mounting. */
+    private Lock lock = new Lock();
+    /** Protects the free-space bitmap and the inode table on disk. */
+    private Lock metaLock = new Lock();
+
+    private static final int sectorSize = Disk.sectorSize;
+    private static final int inodesPerSector = sectorSize / Inode.size;
+    private static final int superblockSector = 0;
+    private static final int rootInumber = 0;
+    private static final int magic = 0x4e414653;
+    private static final int maxPreallocation = 32;
+
+    private static final char dbgFilesys = 'f';
+}
@@ -0,0 +1,144 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.TreeSet;
+
+/**
+ * The free-space bitmap: one bit per sector of the disk, set if the sector is
+ * in use. The whole bitmap is kept in memory, and the sectors of it that
+ * change are written back to the disk by <tt>save()</tt>.
+ *
+ * <p>
+ * Space is handed out in runs of consecutive sectors, so that files are laid
+ * out in as few extents as possible.
+ */
+class FreeMap {
+    /**
+     * Allocate a new free-space bitmap.
+     *
+     * @param	disk	the disk the bitmap describes and is stored on.
+     * @param	firstSector	the first sector of the bitmap on the disk.
+     */
+    FreeMap(SynchDisk disk, int firstSector) {
+	this.disk = disk;
+	this.firstSector = firstSector;
+
+	numSectors = disk.getNumSectors();
+    }
+
+    /**
+     * Return the number of sectors the bitmap of a disk takes.
+     */
+    static int getSize(int numSectors) {
+	return (numSectors + bitsPerSector - 1) / bitsPerSector;
+    }
+
+    /**
+     * Read the bitmap from the disk.
+     */
+    void load() {
+	byte[] data = new byte[Disk.sectorSize];
+	for (int i=0; i<getSize(numSectors); i++) {
+	    disk.readSector(firstSector + i, data, 0);
+	    for (int bit=0; bit<bitsPerSector; bit++) {
+		int sector = i*bitsPerSector + bit;
+		if (sector < numSectors && (data[bit/8] & (1 << (bit%8))) != 0)
+		    used.set(sector);
+	    }
+	}
+	dirty.clear();
+    }
+
+    /**
+     * Write the changed parts of the bitmap to the disk.
+     */
+    void save() {
+	byte[] data = new byte[Disk.sectorSize];
+	for (Integer i : dirty) {
+	    Arrays.fill(data, (byte) 0);
+	    for (int bit=0; bit<bitsPerSector; bit++) {
+		if (used.get(i*bitsPerSector + bit))
+		    data[bit/8] |= (byte) (1 << (bit%8));
+	    }
+	    disk.writeSector(firstSector + i, data, 0);
+	}
+	dirty.clear();
+    }
+
+    /**
+     * Mark a run of sectors in use or free.
+     */
+    void mark(int first, int count, boolean inUse) {
+	used.set(first, first+count, inUse);
+	for (int i=first/bitsPerSector; i<=(first+count-1)/bitsPerSector; i++)
+	    dirty.add(i);
+    }
+
+    /**
+     * Allocate free sectors starting at the specified sector, stopping at the
+     * first sector that is in use.
+     *
+     * @param	first	the first sector to allocate.
+     * @param	count	the most sectors to allocate.
+     * @return	the number of sectors allocated.
+     */
+    int extend(int first, int count) {
+	int end = used.nextSetBit(first);
+	if (end < 0)
+	    end = numSectors;
+	end = Math.min(end, Math.min(numSectors, first+count));
+	if (end <= first)
+	    return 0;
+
+	mark(first, end-first, true);
+	return end-first;
+    }
+
+    /**
+     * Find free space for a new extent: the first run of free sectors long
+     * enough to hold <tt>count</tt> sectors, or the longest run if none is.
+     *
+     * @param	count	the number of sectors wanted.
+     * @return	the first sector of the run, or -1 if the disk is full.
+     */
+    int find(int count) {
+	int best = -1, bestLength = 0;
+
+	for (int first = used.nextClearBit(0); first < numSectors; ) {
+	    int end = used.nextSetBit(first);
+	    if (end < 0)
+		end = numSectors;
+
+	    if (end-first >= count)
+		return first;
+	    if (end-first > bestLength) {
+		best = first;
+		bestLength = end-first;
+	    }
+
+	    first = used.nextClearBit(end);
+	}
+
+	return best;
+    }
+
+    /**
+     * Return the number of free sectors.
+     */
+    int getNumFree() {
+	return numSectors - used.cardinality();
+    }
+
+    private SynchDisk disk;
+    private int firstSector;
+    private int numSectors;
+
+    private BitSet used = new BitSet();
+    private TreeSet<Integer> dirty = new TreeSet<Integer>();
+
+    private static final int bitsPerSector = Disk.sectorSize * 8;
+}
@@ -0,0 +1,131 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The header of a file or directory. On disk, an inode holds the file's type,
+ * its length in bytes, and the extents holding its data: runs of consecutive
+ * sectors that, in order, make up the file. The first <tt>numDirect</tt>
+ * extents are in the inode itself; the rest, up to <tt>maxExtents</tt>, are
+ * in an indirect sector that is allocated once the file needs it. The file
+ * system keeps an <tt>Inode</tt> in memory while the file is open, along with
+ * how many times it is open and whether it has been removed.
+ */
+class Inode {
+    /**
+     * Allocate a new, free inode.
+     *
+     * @param	inumber	the number of the inode.
+     */
+    Inode(int inumber) {
+	this.inumber = inumber;
+    }
+
+    /**
+     * Read this inode from its place in an inode table sector.
+     */
+    void decode(byte[] data, int offset) {
+	type = Lib.bytesToInt(data, offset);
+	length = Lib.bytesToInt(data, offset+4);
+	numExtents = Lib.bytesToInt(data, offset+8);
+	indirect = Lib.bytesToInt(data, offset+12);
+	for (int i=0; i<numDirect; i++) {
+	    start[i] = Lib.bytesToInt(data, offset+headerSize + i*8);
+	    count[i] = Lib.bytesToInt(data, offset+headerSize + i*8 + 4);
+	}
+    }
+
+    /**
+     * Write this inode to its place in an inode table sector.
+     */
+    void encode(byte[] data, int offset) {
+	Lib.bytesFromInt(data, offset, type);
+	Lib.bytesFromInt(data, offset+4, length);
+	Lib.bytesFromInt(data, offset+8, numExtents);
+	Lib.bytesFromInt(data, offset+12, indirect);
+	for (int i=0; i<numDirect; i++) {
+	    Lib.bytesFromInt(data, offset+headerSize + i*8, start[i]);
+	    Lib.bytesFromInt(data, offset+headerSize + i*8 + 4, count[i]);
+	}
+    }
+
+    /**
+     * Read the extents after the first <tt>numDirect</tt> from the indirect
+     * sector.
+     */
+    void decodeIndirect(byte[] data) {
+	for (int i=numDirect; i<maxExtents; i++) {
+	    start[i] = Lib.bytesToInt(data, (i-numDirect)*8);
+	    count[i] = Lib.bytesToInt(data, (i-numDirect)*8 + 4);
+	}
+    }
+
+    /**
+     * Write the extents after the first <tt>numDirect</tt> to the indirect
+     * sector.
+     */
+    void encodeIndirect(byte[] data) {
+	for (int i=numDirect; i<maxExtents; i++) {
+	    Lib.bytesFromInt(data, (i-numDirect)*8, start[i]);
+	    Lib.bytesFromInt(data, (i-numDirect)*8 + 4, count[i]);
+	}
+    }
+
+    /**
+     * Return the number of sectors allocated to this file.
+     */
+    int getNumSectors() {
+	int numSectors = 0;
+	for (int i=0; i<numExtents; i++)
+	    numSectors += count[i];
+	return numSectors;
+    }
+
+    /**
+     * Return the sector holding a block of this file.
+     *
+     * @param	block	the block number, counting from the start of the file.
+     * @return	the sector holding the block, or -1 if the block has not been
+     *		allocated.
+     */
+    int getSector(int block) {
+	for (int i=0; i<numExtents; i++) {
+	    if (block < count[i])
+		return start[i] + block;
+	    block -= count[i];
+	}
+	return -1;
+    }
+
+    /** The number of this inode in the inode table. */
+    final int inumber;
+
+    int type = typeFree;
+    int length = 0;
+    int numExtents = 0;
+    /** The indirect sector, or 0 if the file has none. */
+    int indirect = 0;
+    int[] start = new int[maxExtents];
+    int[] count = new int[maxExtents];
+
+    /** The number of open files and lookups using this inode. */
+    int numOpen = 0;
+    /** True if the extents in the indirect sector have changed. */
+    boolean indirectDirty = false;
+    /** True if this inode has no directory entry and should be freed. */
+    boolean removed = false;
+    /** Serializes reads and writes of this file's data. */
+    Lock lock = new Lock();
+
+    /** The number of bytes an inode takes on disk. */
+    static final int size = 64;
+    /** The number of extents held in the inode itself. */
+    static final int numDirect = 6;
+    /** The number of extents a file can have. */
+    static final int maxExtents = numDirect + Disk.sectorSize/8;
+
+    static final int typeFree = 0, typeFile = 1, typeDirectory = 2;
+
+    private static final int headerSize = 16;
+}
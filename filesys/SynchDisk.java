@@ -0,0 +1,182 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Provides a simple, synchronous interface to the disk. A thread that reads
+ * or writes a sector blocks until the request completes, and any number of
+ * threads may have requests outstanding.
+ *
+ * <p>
+ * Outstanding requests are queued, and the next one is chosen when the disk
+ * finishes the current one. <tt>SynchDisk.scheduling</tt> in
+ * <tt>nachos.conf</tt> selects the order: <tt>elevator</tt> (the default)
+ * serves requests in track order, sweeping the head across the disk and back
+ * like an elevator, while <tt>fifo</tt> serves them in the order they were
+ * made.
+ */
+public class SynchDisk {
+    /**
+     * Allocate a new synchronous disk.
+     *
+     * @param	disk	the disk to access.
+     */
+    public SynchDisk(Disk disk) {
+	this.disk = disk;
+
+	String scheduling = Config.getString("SynchDisk.scheduling",
+					     "elevator");
+	elevator = scheduling.equals("elevator");
+	Lib.assertTrue(elevator || scheduling.equals("fifo"),
+		       "unknown SynchDisk.scheduling " + scheduling);
+
+	disk.setInterruptHandler(new Runnable() {
+		public void run() { requestDone(); }
+	    });
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors on the disk.
+     */
+    public int getNumSectors() {
+	return disk.getNumSectors();
+    }
+
+    /**
+     * Read a sector, blocking until the read completes.
+     *
+     * @param	sector	the sector to read.
+     * @param	data	the array to read the sector into.
+     * @param	offset	the index of the first byte in <tt>data</tt> to
+     *			fill.
+     */
+    public void readSector(int sector, byte[] data, int offset) {
+	request(new Request(sector, data, offset, false));
+    }
+
+    /**
+     * Write a sector, blocking until the write completes.
+     *
+     * @param	sector	the sector to write.
+     * @param	data	the array containing the new contents of the sector.
+     * @param	offset	the index of the first byte in <tt>data</tt> to
+     *			write.
+     */
+    public void writeSector(int sector, byte[] data, int offset) {
+	request(new Request(sector, data, offset, true));
+    }
+
+    private void request(Request request) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	request.queued = Machine.timer().getTime();
+	if (current == null)
+	    start(request);
+	else
+	    waiting.add(request);
+
+	Machine.interrupt().restore(intStatus);
+
+	request.done.P();
+    }
+
+    private void start(Request request) {
+	int track = request.sector / Disk.sectorsPerTrack;
+	totalSeek += Math.abs(track - headTrack);
+	headTrack = track;
+
+	current = request;
+	if (request.write)
+	    disk.writeRequest(request.sector, request.data, request.offset);
+	else
+	    disk.readRequest(request.sector, request.data, request.offset);
+    }
+
+    private void requestDone() {
+	Lib.assertTrue(current != null);
+
+	numRequests++;
+	totalTicks += Machine.timer().getTime() - current.queued;
+	current.done.V();
+	current = null;
+
+	Request next = elevator ? nextInSweep() : null;
+	if (next == null && !waiting.isEmpty())
+	    next = waiting.getFirst();
+	if (next != null) {
+	    waiting.remove(next);
+	    start(next);
+	}
+    }
+
+    /**
+     * Return the waiting request closest to the head in the direction it is
+     * sweeping, reversing the sweep if there is none that way.
+     */
+    private Request nextInSweep() {
+	for (int pass=0; pass<2; pass++) {
+	    Request best = null;
+	    int bestDistance = 0;
+
+	    for (Iterator<Request> i = waiting.iterator(); i.hasNext(); ) {
+		Request request = i.next();
+		int distance = (request.sector / Disk.sectorsPerTrack - headTrack)
+		    * (sweepingUp ? 1 : -1);
+
+		if (distance >= 0 && (best == null || distance < bestDistance)) {
+		    best = request;
+		    bestDistance = distance;
+		}
+	    }
+
+	    if (best != null)
+		return best;
+
+	    sweepingUp = !sweepingUp;
+	}
+
+	return null;
+    }
+
+    /**
+     * Return a one-line summary of the disk's use, for printing with the
+     * kernel's statistics.
+     */
+    public String getStatistics() {
+	return "requests " + numRequests
+	    + ", tracks seeked " + totalSeek
+	    + ", avg ticks " + (numRequests == 0 ? 0 : totalTicks/numRequests);
+    }
+
+    private static class Request {
+	Request(int sector, byte[] data, int offset, boolean write) {
+	    this.sector = sector;
+	    this.data = data;
+	    this.offset = offset;
+	    this.write = write;
+	}
+
+	int sector;
+	byte[] data;
+	int offset;
+	boolean write;
+	long queued;
+	Semaphore done = new Semaphore(0);
+    }
+
+    private Disk disk;
+    private boolean elevator;
+
+    private Request current = null;
+    private LinkedList<Request> waiting = new LinkedList<Request>();
+    private int headTrack = 0;
+    private boolean sweepingUp = true;
+
+    private long numRequests = 0, totalSeek = 0, totalTicks = 0;
+}
@@ -0,0 +1,227 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A hard disk, divided into tracks of sectors, whose contents are kept in a
+ * single image file on the host. The disk can handle one request at a time:
+ * a request to read or write a sector returns immediately, and the disk
+ * interrupt handler is called once the request has completed.
+ *
+ * <p>
+ * How long a request takes depends on where the disk head is. The head must
+ * first seek to the track holding the sector, which takes
+ * <tt>Stats.SeekTime</tt> ticks for the full width of the disk and
+ * proportionally less for shorter distances. It must then wait for the
+ * sector to rotate under it, and finally transfer the sector while it
+ * passes. The disk spins continuously, once every <tt>Stats.RotationTime</tt>
+ * ticks, so the sector under the head depends only on the current time.
+ *
+ * <p>
+ * <tt>nachos.conf</tt> specifies the name of the image file
+ * (<tt>Disk.imageFile</tt>, default <tt>DISK</tt>; a relative name is taken
+ * from the directory Nachos is run in) and the number of tracks
+ * (<tt>Disk.numTracks</tt>). The image file is created if it does not exist.
+ */
+public class Disk {
+    /**
+     * Allocate a new disk.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory containing the image file.
+     */
+    public Disk(Privilege privilege, File directory) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	numTracks = Config.getInteger("Disk.numTracks", 32);
+	Lib.assertTrue(numTracks > 1);
+
+	String imageFileName = Config.getString("Disk.imageFile", "DISK");
+	final File f = new File(imageFileName).isAbsolute() ?
+	    new File(imageFileName) : new File(directory, imageFileName);
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { openImage(f); }
+	    });
+
+	Lib.assertTrue(image != null, "unable to open disk image " + f);
+
+	interrupt = new Runnable() {
+		public void run() { requestDone(); }
+	    };
+    }
+
+    private void openImage(File f) {
+	try {
+	    image = new RandomAccessFile(f, "rw");
+	    if (image.length() < getNumSectors()*sectorSize)
+		image.setLength(getNumSectors()*sectorSize);
+	}
+	catch (IOException e) {
+	    image = null;
+	}
+    }
+
+    /**
+     * Set this disk's interrupt handler. The handler is called every time a
+     * request made with <tt>readRequest()</tt> or <tt>writeRequest()</tt>
+     * completes. Another request can then be made.
+     *
+     * @param	interruptHandler	the callback to call when a request
+     *					completes.
+     */
+    public void setInterruptHandler(Runnable interruptHandler) {
+	this.interruptHandler = interruptHandler;
+    }
+
+    /**
+     * Return the number of sectors on this disk.
+     *
+     * @return	the number of sectors on this disk.
+     */
+    public int getNumSectors() {
+	return numTracks * sectorsPerTrack;
+    }
+
+    /**
+     * Return the number of tracks on this disk.
+     *
+     * @return	the number of tracks on this disk.
+     */
+    public int getNumTracks() {
+	return numTracks;
+    }
+
+    /**
+     * Start reading a sector. When the interrupt handler is called, the
+     * contents of the sector are in <tt>data</tt>.
+     *
+     * @param	sector	the sector to read.
+     * @param	data	the array to read the sector into.
+     * @param	offset	the index of the first byte in <tt>data</tt> to
+     *			fill.
+     */
+    public void readRequest(int sector, byte[] data, int offset) {
+	startRequest(sector, data, offset, false);
+    }
+
+    /**
+     * Start writing a sector. The contents of <tt>data</tt> are copied
+     * before this method returns, so the caller may reuse it immediately.
+     *
+     * @param	sector	the sector to write.
+     * @param	data	the array containing the new contents of the sector.
+     * @param	offset	the index of the first byte in <tt>data</tt> to
+     *			write.
+     */
+    public void writeRequest(int sector, byte[] data, int offset) {
+	startRequest(sector, data, offset, true);
+    }
+
+    private void startRequest(int sector, byte[] data, int offset,
+			      boolean write) {
+	Lib.assertTrue(!busy);
+	Lib.assertTrue(sector >= 0 && sector < getNumSectors());
+	Lib.assertTrue(offset >= 0 && offset+sectorSize <= data.length);
+
+	busy = true;
+	requestSector = sector;
+	requestWrite = write;
+
+	if (write) {
+	    System.arraycopy(data, offset, buffer, 0, sectorSize);
+	    requestData = null;
+	}
+	else {
+	    requestData = data;
+	    requestOffset = offset;
+	}
+
+	privilege.interrupt.schedule(latency(sector), "disk", interrupt);
+    }
+
+    /**
+     * Return the number of ticks from now until a request for the specified
+     * sector would complete.
+     */
+    private long latency(int sector) {
+	long now = privilege.stats.totalTicks;
+	int track = sector / sectorsPerTrack;
+
+	long seek = (long) Stats.SeekTime * Math.abs(track - headTrack)
+	    / (numTracks-1);
+
+	// the sector boundary that passes under the head after the seek
+	long ready = (now + seek + sectorTime - 1) / sectorTime;
+	int underHead = (int) (ready % sectorsPerTrack);
+	int wait = (sector%sectorsPerTrack - underHead + sectorsPerTrack)
+	    % sectorsPerTrack;
+
+	return (ready + wait + 1) * sectorTime - now;
+    }
+
+    private void requestDone() {
+	Lib.assertTrue(busy);
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { transfer(); }
+	    });
+
+	headTrack = requestSector / sectorsPerTrack;
+	requestData = null;
+	busy = false;
+
+	if (requestWrite)
+	    privilege.stats.numDiskWrites++;
+	else
+	    privilege.stats.numDiskReads++;
+
+	if (interruptHandler != null)
+	    interruptHandler.run();
+    }
+
+    private void transfer() {
+	try {
+	    image.seek((long) requestSector * sectorSize);
+	    if (requestWrite)
+		image.write(buffer, 0, sectorSize);
+	    else
+		image.readFully(requestData, requestOffset, sectorSize);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("disk image I/O failed: " + e);
+	}
+    }
+
+    /** The number of bytes in a sector. */
+    public static final int sectorSize = 128;
+    /** The number of sectors in a track. */
+    public static final int sectorsPerTrack = 32;
+
+    /** The number of ticks a sector takes to pass under the head. */
+    private static final int sectorTime = Stats.RotationTime / sectorsPerTrack;
+
+    private Privilege privilege;
+    private Runnable interrupt;
+    private Runnable interruptHandler = null;
+
+    private int numTracks;
+    private RandomAccessFile image = null;
+
+    private int headTrack = 0;
+    private boolean busy = false;
+    private int requestSector;
+    private boolean requestWrite;
+    private byte[] requestData;
+    private int requestOffset;
+    private byte[] buffer = new byte[sectorSize];
+}
@@ -185,6 +185,9 @@ public final class Machine {
 	if (Config.getBoolean("Machine.stubFileSystem"))
 	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
+	if (Config.getBoolean("Machine.disk"))
+	    disk = new Disk(privilege, baseDirectory);
+
 	if (Config.getBoolean("Machine.networkLink"))
 	    networkLink = new NetworkLink(privilege);
     }
@@ -337,6 +340,13 @@ public final class Machine {
      */
     public static FileSystem stubFileSystem() { return stubFileSystem; }
     
+    /**
+     * Return the hard disk.
+     *
+     * @return	the hard disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
+    
     /**
      * Return the network link.
      *
@@ -357,6 +367,7 @@ public final class Machine {
     private static Processor processor = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
+    private static Disk disk = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
 
@@ -8,10 +8,23 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * The <tt>StubFileSystem.backing</tt> key selects how open files reach the
+ * host: <tt>randomAccess</tt> (the default) seeks and reads or writes a
+ * <tt>RandomAccessFile</tt> on every call; <tt>channel</tt> uses positional
+ * <tt>FileChannel</tt> reads and writes and keeps track of file lengths
+ * itself; and <tt>mapped</tt> does the same, but also serves reads of a file
+ * from a memory mapping until the file is first written. A mapping is not
+ * released when its file is closed, only when the JVM garbage collects it.
  */
 public class StubFileSystem implements FileSystem {
     /**
@@ -24,6 +37,14 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
 	this.privilege = privilege;
 	this.directory = directory;
+
+	String backing = Config.getString("StubFileSystem.backing",
+					  "randomAccess");
+	useChannels = !backing.equals("randomAccess");
+	useMappings = backing.equals("mapped");
+	Lib.assertTrue(backing.equals("randomAccess") ||
+		       backing.equals("channel") || useMappings,
+		       "unknown StubFileSystem.backing " + backing);
     }
     
     public OpenFile open(String name, boolean truncate) {
@@ -33,7 +54,10 @@ public class StubFileSystem implements FileSystem {
 	delay();
 	    
 	try {
-	    return new StubOpenFile(name, truncate);
+	    if (useChannels)
+		return new ChannelOpenFile(name, truncate);
+	    else
+		return new StubOpenFile(name, truncate);
 	}
 	catch (IOException e) {
 	    return null;
@@ -48,6 +72,10 @@ public class StubFileSystem implements FileSystem {
 
 	FileRemover fr = new FileRemover(new File(directory, name));
 	privilege.doPrivileged(fr);
+
+	// a file created with the same name starts with its own length
+	if (fr.successful)
+	    lengths.remove(name);
 	return fr.successful;
     }
 
@@ -163,8 +191,176 @@ public class StubFileSystem implements FileSystem {
 	private boolean open = false;
     }
 
+    /**
+     * An open file that reaches the host through a <tt>FileChannel</tt>. Its
+     * length is shared with the other open files of the same name, so that
+     * <tt>length()</tt> does not ask the host.
+     */
+    private class ChannelOpenFile extends OpenFileWithPosition {
+	ChannelOpenFile(final String name, final boolean truncate)
+	    throws IOException {
+	    super(StubFileSystem.this, name);
+
+	    final File f = new File(directory, name);
+
+	    if (openCount == maxOpenFiles)
+		throw new IOException();
+
+	    privilege.doPrivileged(new Runnable() {
+		public void run() { getChannel(f, truncate); }
+	    });
+
+	    if (channel == null)
+		throw new IOException();
+
+	    length = lengths.get(name);
+	    if (length == null) {
+		length = new Length();
+		lengths.put(name, length);
+		length.value = channel.size();
+	    }
+	    else if (truncate) {
+		length.value = 0;
+	    }
+	    length.numOpen++;
+
+	    open = true;
+	    openCount++;
+	}
+
+	private void getChannel(File f, boolean truncate) {
+	    try {
+		if (!truncate && !f.exists())
+		    return;
+
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		channel = file.getChannel();
+
+		if (truncate)
+		    channel.truncate(0);
+	    }
+	    catch (IOException e) {
+		channel = null;
+	    }
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open)
+		return -1;
+	    
+	    try {
+		delay();
+
+		// as with RandomAccessFile.seek()
+		if (pos < 0)
+		    return -1;
+		if (pos >= this.length.value)
+		    return 0;
+		length = (int) Math.min(length, this.length.value - pos);
+
+		if (useMappings && !written &&
+		    (mapping == null || mapping.capacity() < pos + length)) {
+		    privilege.doPrivileged(new Runnable() {
+			public void run() { map(); }
+		    });
+		}
+		if (mapping != null) {
+		    ByteBuffer view = mapping.duplicate();
+		    view.position(pos);
+		    view.get(buf, offset, length);
+		    return length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+		while (buffer.hasRemaining()) {
+		    if (channel.read(buffer, pos + buffer.position() - offset) < 0)
+			break;
+		}
+		return buffer.position() - offset;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+	
+	private void map() {
+	    try {
+		mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				      length.value);
+	    }
+	    catch (IOException e) {
+		// reads go through the channel instead
+		mapping = null;
+	    }
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open)
+		return -1;
+	    
+	    try {
+		delay();
+
+		if (pos < 0)
+		    return -1;
+
+		// the mapping would not see the file grow
+		written = true;
+		mapping = null;
+
+		ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+		while (buffer.hasRemaining())
+		    channel.write(buffer, pos + buffer.position() - offset);
+
+		this.length.value = Math.max(this.length.value, pos + length);
+		return length;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
+	public int length() {
+	    return (int) length.value;
+	}
+
+	public void close() {
+	    if (open) {
+		open = false;
+		openCount--;
+
+		if (--length.numOpen == 0 && lengths.get(getName()) == length)
+		    lengths.remove(getName());
+	    }
+		
+	    // Java offers no way to unmap a buffer, so the host keeps the file
+	    // mapped until the buffer is garbage collected
+	    mapping = null;
+	    try {
+		channel.close();
+	    }
+	    catch (IOException e) {
+	    }
+	}
+
+	private FileChannel channel = null;
+	private MappedByteBuffer mapping = null;
+	private boolean written = false;
+	private Length length;
+	private boolean open = false;
+    }
+
+    /** The length of a host file, shared by its open files. */
+    private static class Length {
+	long value;
+	int numOpen = 0;
+    }
+
     private int openCount = 0;
     private static final int maxOpenFiles = 16;
+
+    private boolean useChannels, useMappings;
+    private HashMap<String, Length> lengths = new HashMap<String, Length>();
     
     private Privilege privilege;
     private File directory;
@@ -0,0 +1,49 @@
+/* manyfds.c
+ *	Test program for growing the file descriptor table.
+ *
+ *	Opens many more descriptors than the table starts with, using pipes
+ *	since the file system limits how many files can be open, checks that
+ *	each new descriptor is the lowest one free, and that the last pipe
+ *	still works.
+ */
+
+#include "stdlib.h"
+#include "stdio.h"
+
+#define NUM_PIPES 300
+
+int main()
+{
+    int fds[2], i;
+    char c = 'x';
+
+    for (i=0; i<NUM_PIPES; i++) {
+	if (pipe(fds) != 0) {
+	    printf("pipe %d failed\n", i);
+	    exit(1);
+	}
+	if (fds[0] != 2 + 2*i || fds[1] != 3 + 2*i) {
+	    printf("pipe %d got descriptors %d and %d\n", i, fds[0], fds[1]);
+	    exit(2);
+	}
+    }
+
+    if (write(fds[1], &c, 1) != 1 || read(fds[0], &c, 1) != 1 || c != 'x') {
+	printf("pipe at descriptor %d does not work\n", fds[0]);
+	exit(3);
+    }
+
+    /* free a hole low in the table; it is reused first */
+    close(10);
+    close(11);
+    if (pipe(fds) != 0 || fds[0] != 10 || fds[1] != 11) {
+	printf("descriptors 10 and 11 were not reused\n");
+	exit(4);
+    }
+
+    for (i=2; i<2+2*NUM_PIPES; i++)
+	close(i);
+
+    printf("%d descriptors opened\n", 2 + 2*NUM_PIPES);
+    return 0;
+}
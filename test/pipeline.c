@@ -0,0 +1,55 @@
+/* pipeline.c
+ *	Test program for streaming data from one process to another.
+ *
+ *	Runs echo.coff with its stdout going into a pipe, reads the pipe until
+ *	every write end is closed, and checks that everything echo printed
+ *	came through.
+ */
+
+#include "stdlib.h"
+#include "stdio.h"
+
+int main()
+{
+    char *args[3];
+    int fds[2], stdio[2];
+    char buf[64];
+    int pid, n, total, status;
+
+    args[0] = "echo.coff";
+    args[1] = "hello";
+    args[2] = "pipe";
+
+    if (pipe(fds) != 0) {
+	printf("pipe failed\n");
+	exit(1);
+    }
+
+    /* echo reads the console and writes the pipe */
+    stdio[0] = 0;
+    stdio[1] = fds[1];
+    pid = execio("echo.coff", 3, args, stdio);
+    if (pid == -1) {
+	printf("execio failed\n");
+	exit(2);
+    }
+
+    /* echo now holds the only write end, so read() sees the end of the
+     * stream once echo exits */
+    close(fds[1]);
+
+    total = 0;
+    while ((n = read(fds[0], buf, sizeof(buf)-1)) > 0) {
+	buf[n] = 0;
+	printf("%s", buf);
+	total += n;
+    }
+
+    if (join(pid, &status) != 1) {
+	printf("join failed\n");
+	exit(3);
+    }
+
+    printf("read %d bytes from echo\n", total);
+    return (total == 54) ? 0 : 4;
+}
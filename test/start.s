@@ -67,3 +67,47 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(pread, syscallPread)
+	SYSCALLSTUB(pwrite, syscallPwrite)
+	SYSCALLSTUB(ring_setup, syscallRingSetup)
+	SYSCALLSTUB(ring_enter, syscallRingEnter)
+	SYSCALLSTUB(aread, syscallAread)
+	SYSCALLSTUB(awrite, syscallAwrite)
+	SYSCALLSTUB(aio_wait, syscallAioWait)
+	SYSCALLSTUB(aio_poll, syscallAioPoll)
+	SYSCALLSTUB(waitAny, syscallWaitAny)
+	SYSCALLSTUB(thread_join, syscallThreadJoin)
+	SYSCALLSTUB(thread_exit, syscallThreadExit)
+	SYSCALLSTUB(futex_wait, syscallFutexWait)
+	SYSCALLSTUB(futex_wake, syscallFutexWake)
+	SYSCALLSTUB(shmget, syscallShmget)
+	SYSCALLSTUB(shmat, syscallShmat)
+	SYSCALLSTUB(shmdt, syscallShmdt)
+	SYSCALLSTUB(sbrk, syscallSbrk)
+	SYSCALLSTUB(execio, syscallExecio)
+
+/* -------------------------------------------------------------
+ * thread_create
+ *	Passes the kernel a third argument: the address the new thread
+ *	returns to from its function, which calls thread_exit() with the
+ *	function's return value.
+ * -------------------------------------------------------------
+ */
+
+	.globl	thread_create
+	.ent	thread_create
+thread_create:
+	la	$6,__thread_return
+	addiu	$2,$0,syscallThreadCreate
+	syscall
+	j	$31
+	.end	thread_create
+
+	.ent	__thread_return
+__thread_return:
+	addu	$4,$2,$0
+	jal	thread_exit
+	.end	__thread_return
@@ -25,6 +25,28 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallPipe		13
+#define syscallReadv		14
+#define syscallWritev		15
+#define syscallPread		16
+#define syscallPwrite		17
+#define syscallRingSetup	18
+#define syscallRingEnter	19
+#define syscallAread		20
+#define syscallAwrite		21
+#define syscallAioWait		22
+#define syscallAioPoll		23
+#define syscallWaitAny		24
+#define syscallThreadCreate	25
+#define syscallThreadJoin	26
+#define syscallThreadExit	27
+#define syscallFutexWait	28
+#define syscallFutexWake	29
+#define syscallShmget		30
+#define syscallShmat		31
+#define syscallShmdt		32
+#define syscallSbrk		33
+#define syscallExecio		34
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +75,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), execio(), join() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -90,6 +112,18 @@ void exit(int status);
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Like exec(), but the child starts with file descriptors 0 and 1 referring to
+ * the same pipes or console as the caller's file descriptors fds[0] and
+ * fds[1], instead of to the console. This lets processes stream data to each
+ * other through a pipe. The child gets descriptors of its own, and an end of
+ * a pipe stays open until every process holding it has closed it. Only pipes
+ * and the console can be passed.
+ *
+ * Returns the child's process ID, or -1 if an error occurred.
+ */
+int execio(char *file, int argc, char *argv[], int fds[2]);
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -109,6 +143,114 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Like join(), but wait for whichever child process of the current process
+ * exits first, or for any child that has exited and not been joined yet.
+ *
+ * Returns the process ID of the joined child, or -1 if the current process has
+ * no child left to join. The exit status is stored at status as for join().
+ */
+int waitAny(int *status);
+
+/**
+ * Start a new thread in the current process, running func(arg). The thread
+ * shares the address space and file descriptors of the process, and has a
+ * stack of its own. If func returns, the thread exits as if by thread_exit()
+ * with the return value. A process may have up to 8 threads besides the one
+ * running main().
+ *
+ * Returns the thread ID (greater than 0), or -1 if an error occurred.
+ */
+int thread_create(void (*func)(void *), void *arg);
+
+/**
+ * Wait for the thread with the given ID to exit, and store the status it
+ * passed to thread_exit() at status, unless status is 0. Each thread can be
+ * joined once; the thread running main() cannot be joined.
+ *
+ * Returns 0 on success, or -1 if there is no such thread to join.
+ */
+int thread_join(int threadID, int *status);
+
+/**
+ * End the calling thread. If it is the last thread of the process, the
+ * process exits as if by exit(status). Calling exit() from any thread ends
+ * every thread of the process; a thread blocked in a system call such as
+ * read() on a pipe, join() or aio_wait() is woken up and ends too.
+ */
+void thread_exit(int status);
+
+/**
+ * If the word at addr still holds expected, sleep until another thread of the
+ * process calls futex_wake() on the same word. The kernel checks the word and
+ * goes to sleep atomically, so a wake-up that follows a change to the word is
+ * never lost. addr must be aligned to 4 bytes.
+ *
+ * This is meant for building locks and condition variables whose
+ * uncontended paths make no system call at all.
+ *
+ * Returns 0 when woken, or -1 if the word did not hold expected or addr is
+ * invalid.
+ */
+int futex_wait(int *addr, int expected);
+
+/**
+ * Wake up to count threads sleeping in futex_wait() on the word at addr,
+ * oldest first.
+ *
+ * Returns the number of threads woken, or -1 if addr is invalid.
+ */
+int futex_wake(int *addr, int count);
+
+/* SHARED MEMORY SYSCALLS: shmget, shmat, shmdt */
+
+/**
+ * Get the shared memory segment with the given key, creating it with at least
+ * size bytes if it does not exist yet. A new segment is filled with zeros. A
+ * key of 0 always creates a new segment. All the segments together may hold
+ * up to UserKernel.maxSharedPages pages: a quarter of physical memory by
+ * default, and never more than half.
+ *
+ * The process holds the segment until it exits; the segment is destroyed
+ * once no process holds it.
+ *
+ * Returns the ID of the segment, or -1 if an existing segment is smaller than
+ * size or an error occurred.
+ */
+int shmget(int key, int size);
+
+/**
+ * Map the segment with the given ID, obtained from shmget(), into the address
+ * space at address. address must be page-aligned and lie past the stacks,
+ * where no other segment or file is mapped. Every process that maps a
+ * segment sees the same memory, and futex_wait() and futex_wake() on a word
+ * of it reach the threads of all of them.
+ *
+ * Returns address, or -1 (cast to a pointer) if an error occurred.
+ */
+void *shmat(int id, void *address);
+
+/**
+ * Unmap the segment mapped at address by shmat(). The process still holds
+ * the segment and may map it again.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int shmdt(void *address);
+
+/* MEMORY SYSCALLS: sbrk */
+
+/**
+ * Move the end of the heap, which starts empty just past the program's data,
+ * by increment bytes. New heap memory is filled with zeros, and memory
+ * released by a negative increment is lost. The heap may grow to 256 pages.
+ *
+ * Returns the old end of the heap, which is the start of the new memory when
+ * growing, or -1 (cast to a pointer) if the heap would shrink below its start
+ * or grow past its limit.
+ */
+void *sbrk(int increment);
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -116,7 +258,12 @@ int join(int processID, int *status);
  * connections). A file descriptor can be passed to read() and write() to
  * read/write the corresponding file/stream. A file descriptor can also be
  * passed to close() to release the file descriptor and any associated
- * resources.
+ * resources. A process may have up to UserKernel.maxOpenFiles (1024 by
+ * default) file descriptors open, and a new file descriptor is always the
+ * lowest one not in use. Files on disk are also limited by the file system:
+ * the stub file system keeps at most 16 open at once, across all processes,
+ * so creat() and open() may fail long before a process runs out of file
+ * descriptors. Pipes and the console are not limited this way.
  */
 
 /**
@@ -262,6 +409,150 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Create a pipe: a bounded stream of bytes kept in the kernel. On success,
+ * fds[0] is set to a new file descriptor referring to the read end, and fds[1]
+ * to a new file descriptor referring to the write end.
+ *
+ * read() on the read end waits until some data is available, and returns 0
+ * once the pipe is empty and every write end has been closed. write() on the
+ * write end waits until there is room for some data, and may write fewer
+ * bytes than requested; it returns -1 if every read end has been closed.
+ * execio() passes an end of a pipe to a child process.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/* A buffer for readv() and writev(). */
+struct iovec {
+    char *iov_base;
+    int iov_len;
+};
+
+/**
+ * Like read(), but fill up to iovcnt buffers, in order, from a single read of
+ * the file. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but write the contents of up to iovcnt buffers, in order, as
+ * a single write to the file. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like read(), but read starting at byte offset pos of the file, without
+ * using or changing the current file position. Fails on streams, such as the
+ * console and pipes, that have no file positions.
+ *
+ * Returns the number of bytes read, or -1 if an error occurred.
+ */
+int pread(int fileDescriptor, void *buffer, int count, int pos);
+
+/**
+ * Like write(), but write starting at byte offset pos of the file, without
+ * using or changing the current file position. Fails on streams, such as the
+ * console and pipes, that have no file positions.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred.
+ */
+int pwrite(int fileDescriptor, void *buffer, int count, int pos);
+
+/* A system call submitted through a ring: the syscall code, its arguments,
+ * and a value copied to its completion.
+ */
+struct ring_sqe {
+    int syscall;
+    int args[4];
+    int user_data;
+};
+
+/* The result of a system call submitted through a ring. */
+struct ring_cqe {
+    int user_data;
+    int result;
+};
+
+/* The header of a pair of rings. It is followed in memory by the submission
+ * ring, then by the completion ring, each holding the number of entries given
+ * to ring_setup(). Entry i of a ring is kept in slot i % entries.
+ *
+ * The program appends submissions at sq_tail and consumes completions from
+ * cq_head; the kernel consumes submissions from sq_head and appends
+ * completions at cq_tail.
+ */
+struct ring {
+    int sq_head;
+    int sq_tail;
+    int cq_head;
+    int cq_tail;
+};
+
+/**
+ * Register a pair of rings of the given number of entries (at most 64) at
+ * ring, replacing any rings registered before, and set their heads and tails
+ * to 0.
+ *
+ * Only creat(), open(), read(), write(), close(), unlink(), pipe(), readv(),
+ * writev(), pread() and pwrite() can be submitted through the rings; any
+ * other submission completes with -1.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int ring_setup(struct ring *ring, int entries);
+
+/**
+ * Run up to toSubmit pending submissions, in order, posting the result of
+ * each to the completion ring. Stops early when the completion ring is full.
+ *
+ * Returns the number of submissions run, or -1 if an error occurred.
+ */
+int ring_enter(int toSubmit);
+
+/**
+ * Start reading up to count bytes from the file, like read(), and return
+ * without waiting for the read to complete. The data is copied to buffer when
+ * the request is collected by aio_wait() or aio_poll(), so buffer must not be
+ * used until then.
+ *
+ * Requests on the same file descriptor complete in the order they were made.
+ * At most 16 requests may be pending at a time. Closing the file descriptor,
+ * or exiting, waits for its writes to complete and makes its reads that have
+ * not started fail.
+ *
+ * Returns the ID of the request (greater than 0), or -1 if an error occurred.
+ */
+int aread(int fileDescriptor, void *buffer, int count);
+
+/**
+ * Start writing count bytes from buffer to the file, like write(), and return
+ * without waiting for the write to complete. The data is copied out of buffer
+ * before awrite() returns.
+ *
+ * Returns the ID of the request (greater than 0), or -1 if an error occurred.
+ */
+int awrite(int fileDescriptor, void *buffer, int count);
+
+/**
+ * Wait for the request with the given ID, or for any request if id is -1, to
+ * complete, and collect it. The value read() or write() would have returned
+ * is stored at result, unless result is 0.
+ *
+ * Returns the ID of the collected request, or -1 if there is no such request.
+ */
+int aio_wait(int id, int *result);
+
+/**
+ * Like aio_wait(), but return 0 at once if the request has not completed.
+ */
+int aio_poll(int id, int *result);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -0,0 +1,70 @@
+/* threadexit.c
+ *	Test program for exit() while other threads are blocked in the kernel.
+ *
+ *	One worker thread blocks reading an empty pipe, and another blocks
+ *	joining it. main() then calls exit(), which should end the process with
+ *	status 3 instead of waiting for the workers forever.
+ */
+
+#include "stdlib.h"
+#include "stdio.h"
+
+int fds[2];	/* never written: reading it blocks */
+int ready[2];	/* tells main() the reader has started */
+
+void adder(void *arg)
+{
+    thread_exit((int) arg + 1);
+}
+
+void reader(void *arg)
+{
+    char c = 'r';
+
+    write(ready[1], &c, 1);
+    read(fds[0], &c, 1);
+
+    printf("reader: read returned\n");
+}
+
+void joiner(void *arg)
+{
+    int status;
+
+    thread_join((int) arg, &status);
+
+    printf("joiner: thread_join returned\n");
+}
+
+int main()
+{
+    int tid, reader_tid, status;
+    volatile int i;
+    char c;
+
+    if (pipe(fds) != 0 || pipe(ready) != 0) {
+	printf("pipe failed\n");
+	exit(1);
+    }
+
+    /* a thread that exits by itself can be joined as usual */
+    tid = thread_create(adder, (void *) 41);
+    if (tid < 0 || thread_join(tid, &status) != 0 || status != 42) {
+	printf("thread_join failed\n");
+	exit(2);
+    }
+
+    reader_tid = thread_create(reader, 0);
+    if (reader_tid < 0 || thread_create(joiner, (void *) reader_tid) < 0) {
+	printf("thread_create failed\n");
+	exit(2);
+    }
+
+    /* wait for the reader, then give both workers time to block */
+    read(ready[0], &c, 1);
+    for (i=0; i<100000; i++)
+	;
+
+    printf("main: exiting\n");
+    exit(3);
+}
@@ -0,0 +1,676 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * A file system that keeps recently used blocks of files in memory, in front
+ * of another file system. Reads of cached blocks, and all writes, cost no
+ * simulated time; only misses and write-backs go to the underlying file
+ * system.
+ *
+ * <p>
+ * Blocks are evicted in LRU order once the cache is full. Dirty blocks are
+ * written back when they are evicted, when the last open file referring to
+ * them is closed, by a flusher thread that runs periodically, and by
+ * <tt>flush()</tt>. Clean blocks stay cached after a file is closed, so a file
+ * that is opened again can be read without going to the underlying file
+ * system.
+ *
+ * <p>
+ * All the open files with the same name share one set of cached blocks, and
+ * one file of the underlying file system.
+ *
+ * <p>
+ * Each open file watches for sequential reads. While its reads are
+ * sequential, the blocks following them are read ahead into the cache,
+ * together with any blocks the read itself misses, in one access to the
+ * underlying file system. The read-ahead window doubles every time the reads
+ * move on to a new block, up to a limit, and closes when a read is not
+ * sequential.
+ *
+ * <p>
+ * Writes succeed as soon as the cache holds them, so a write-back can fail
+ * later, for example when the underlying file system is full. The block is
+ * then dropped, the file is cut short where the write-back stopped, and the
+ * next write to the file returns -1. From then on the file is written
+ * through: each write goes to the underlying file system before it returns,
+ * and reports how much of it got there.
+ */
+public class CachedFileSystem implements FileSystem {
+    /**
+     * Allocate a new cache in front of a file system, and start its flusher.
+     *
+     * @param	fileSystem	the file system to cache.
+     * @param	numBlocks	the maximum number of blocks to cache.
+     * @param	blockSize	the size of a block, in bytes.
+     * @param	flushInterval	the number of ticks between flushes.
+     */
+    public CachedFileSystem(FileSystem fileSystem, int numBlocks,
+			    int blockSize, long flushInterval) {
+	Lib.assertTrue(numBlocks > 0 && blockSize > 0 && flushInterval > 0);
+
+	this.fileSystem = fileSystem;
+	this.numBlocks = numBlocks;
+	this.blockSize = blockSize;
+	this.flushInterval = flushInterval;
+	this.maxWindow = Math.min(maxReadAhead, numBlocks/4);
+
+	new KThread(new Runnable() {
+		public void run() { flusher(); }
+	    }).setName("file cache flusher").fork();
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	lock.acquire();
+
+	CachedFile file;
+	while (true) {
+	    file = files.get(name);
+	    if (file == null) {
+		file = new CachedFile(name);
+		files.put(name, file);
+	    }
+	    if (!file.opening)
+		break;
+	    blockIdle.sleep();
+	}
+
+	// the first open of a file, or a truncation, goes to the disk
+	if (file.numOpen == 0 || truncate) {
+	    file.opening = true;
+	    lock.release();
+	    OpenFile underlying = fileSystem.open(name, truncate);
+	    lock.acquire();
+	    file.opening = false;
+	    blockIdle.wakeAll();
+
+	    if (underlying == null) {
+		forgetIfUnused(file);
+		lock.release();
+		return null;
+	    }
+
+	    if (truncate) {
+		discardBlocks(file);
+		file.length = 0;
+	    }
+	    if (file.underlying == null) {
+		file.underlying = underlying;
+		file.length = underlying.length();
+	    }
+	    else {
+		underlying.close();
+	    }
+	}
+
+	file.numOpen++;
+	lock.release();
+
+	return new CachedOpenFile(file);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+
+	// open files keep their blocks, but the name now refers to a new file
+	CachedFile file = files.remove(name);
+	if (file != null) {
+	    file.removed = true;
+	    if (file.numOpen == 0)
+		discardBlocks(file);
+	}
+
+	lock.release();
+
+	return fileSystem.remove(name);
+    }
+
+    /**
+     * Write every dirty block back to the underlying file system. Called when
+     * the kernel terminates.
+     */
+    public void flush() {
+	lock.acquire();
+	writeBack(null);
+	lock.release();
+    }
+
+    /**
+     * Return a one-line summary of the cache's use, for printing with the
+     * kernel's statistics.
+     */
+    public String getStatistics() {
+	return "hits " + numHits + ", misses " + numMisses
+	    + ", read ahead " + numReadAhead + " (" + numReadAheadUsed
+	    + " used, " + numReadAheadWasted + " evicted unused)"
+	    + ", write-backs " + numWriteBacks
+	    + " (" + numWriteErrors + " failed)"
+	    + ", evictions " + numEvictions;
+    }
+
+    private void flusher() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(flushInterval);
+	    flush();
+	}
+    }
+
+    /**
+     * Return a block of a file, reading it from the underlying file system if
+     * it is not cached. The block is returned idle, as the most recently used
+     * block. The caller must hold the lock.
+     *
+     * @param	file	the file.
+     * @param	index	the block number within the file.
+     * @param	load	<tt>false</tt> if the caller will overwrite the whole
+     *			block, so a missing block need not be read.
+     * @return	the block, or <tt>null</tt> if it could not be read.
+     */
+    private Block getBlock(CachedFile file, int index, boolean load) {
+	while (true) {
+	    Block block = file.blocks.get(index);
+	    if (block == null) {
+		if (lru.size() < numBlocks)
+		    break;
+
+		// another thread may cache the block while this one waits
+		makeRoom();
+		continue;
+	    }
+
+	    if (block.busy) {
+		blockIdle.sleep();
+		continue;
+	    }
+
+	    lru.remove(block);
+	    lru.add(block);
+	    return block;
+	}
+
+	Block block = new Block(file, index);
+	block.busy = true;
+	file.blocks.put(index, block);
+	lru.add(block);
+
+	int start = index*blockSize;
+	if (load && start < file.length) {
+	    lock.release();
+	    int amount = file.underlying.read(start, block.data, 0,
+					      Math.min(blockSize,
+						       file.length - start));
+	    lock.acquire();
+
+	    if (amount == -1) {
+		dropBlock(block);
+		return null;
+	    }
+	}
+
+	block.busy = false;
+	blockIdle.wakeAll();
+	return block;
+    }
+
+    /**
+     * Evict least recently used blocks until there is room for another one.
+     * The caller must hold the lock.
+     */
+    private void makeRoom() {
+	while (lru.size() >= numBlocks) {
+	    if (!evict())
+		blockIdle.sleep();
+	}
+    }
+
+    /**
+     * Evict the least recently used idle block, or write it back if it is
+     * dirty. The caller must hold the lock.
+     *
+     * @return	<tt>false</tt> if every block is busy.
+     */
+    private boolean evict() {
+	Block victim = null;
+	for (Block block : lru) {
+	    if (!block.busy) {
+		victim = block;
+		break;
+	    }
+	}
+
+	if (victim == null)
+	    return false;
+
+	if (victim.dirty) {
+	    // it may be used again while being written, so the caller checks
+	    // again
+	    writeBlock(victim);
+	}
+	else {
+	    lru.remove(victim);
+	    victim.file.blocks.remove(victim.index);
+	    if (victim.readAhead)
+		numReadAheadWasted++;
+	    numEvictions++;
+	    forgetIfUnused(victim.file);
+	}
+	return true;
+    }
+
+    /**
+     * Read the missing blocks in a range of a file with one access to the
+     * underlying file system. Blocks already cached at the start of the range
+     * are skipped, and the read stops at the next cached block. No block is
+     * read if that would mean waiting for room. The caller must hold the lock.
+     *
+     * @param	file	the file.
+     * @param	first	the first block of the range.
+     * @param	end	the block following the range.
+     * @param	demandEnd	the block following those the caller will read
+     *				now; later blocks are read ahead.
+     */
+    private void readBlocks(CachedFile file, int first, int end,
+			    int demandEnd) {
+	end = Math.min(end, (file.length + blockSize - 1) / blockSize);
+	while (first < end && file.blocks.containsKey(first))
+	    first++;
+
+	LinkedList<Block> run = new LinkedList<Block>();
+	while (first + run.size() < end) {
+	    int index = first + run.size();
+	    if (file.blocks.containsKey(index))
+		break;
+
+	    // busy blocks may belong to this read, so don't wait for them
+	    if (lru.size() >= numBlocks) {
+		if (!evict())
+		    break;
+		continue;
+	    }
+
+	    Block block = new Block(file, index);
+	    block.busy = true;
+	    block.readAhead = (index >= demandEnd);
+	    if (block.readAhead)
+		numReadAhead++;
+	    file.blocks.put(index, block);
+	    lru.add(block);
+	    run.add(block);
+	}
+
+	if (run.isEmpty())
+	    return;
+
+	int start = first*blockSize;
+	byte[] data = new byte[Math.min(run.size()*blockSize,
+					file.length - start)];
+	lock.release();
+	int amount = file.underlying.read(start, data, 0, data.length);
+	lock.acquire();
+
+	for (Block block : run) {
+	    if (amount == -1) {
+		// the reader will miss and try again on its own
+		dropBlock(block);
+		continue;
+	    }
+
+	    int offset = (block.index - first)*blockSize;
+	    System.arraycopy(data, offset, block.data, 0,
+			     Math.min(blockSize, data.length - offset));
+	    block.busy = false;
+	}
+	blockIdle.wakeAll();
+    }
+
+    /**
+     * Write the dirty blocks of a file, or of every file, back to the
+     * underlying file system, and wait until no block of it is busy. The
+     * caller must hold the lock.
+     *
+     * @param	file	the file to write back, or <tt>null</tt> for all files.
+     */
+    private void writeBack(CachedFile file) {
+	while (true) {
+	    Block dirty = null;
+	    boolean busy = false;
+	    Iterator<Block> i = (file == null) ? lru.iterator()
+		: file.blocks.values().iterator();
+	    while (i.hasNext()) {
+		Block block = i.next();
+		// a busy block may be being written back by another thread
+		if (block.busy)
+		    busy = true;
+		else if (block.dirty) {
+		    dirty = block;
+		    break;
+		}
+	    }
+
+	    if (dirty != null)
+		writeBlock(dirty);
+	    else if (busy)
+		blockIdle.sleep();
+	    else
+		return;
+	}
+    }
+
+    /**
+     * Write a dirty block back to the underlying file system. If the write
+     * fails or is short, the block is dropped, the file is cut short where
+     * the underlying file ends, and the error is recorded for the next write
+     * to the file. The caller must hold the lock, which is released during
+     * the write.
+     */
+    private void writeBlock(Block block) {
+	CachedFile file = block.file;
+	int start = block.index*blockSize;
+	int amount = Math.min(blockSize, file.length - start);
+
+	block.busy = true;
+	block.dirty = false;
+
+	if (amount > 0) {
+	    lock.release();
+	    int written = file.underlying.write(start, block.data, 0, amount);
+	    lock.acquire();
+	    numWriteBacks++;
+
+	    if (written != amount) {
+		numWriteErrors++;
+		file.writeError = true;
+		file.writeThrough = true;
+		file.length = Math.min(file.length,
+				       start + Math.max(written, 0));
+		dropBlock(block);
+		return;
+	    }
+	}
+
+	block.busy = false;
+	blockIdle.wakeAll();
+    }
+
+    /**
+     * Drop a busy block whose read or write-back failed. The caller must hold
+     * the lock.
+     */
+    private void dropBlock(Block block) {
+	lru.remove(block);
+	block.file.blocks.remove(block.index);
+	block.busy = false;
+	blockIdle.wakeAll();
+	forgetIfUnused(block.file);
+    }
+
+    /**
+     * Drop the blocks of a file without writing them back. The caller must
+     * hold the lock.
+     */
+    private void discardBlocks(CachedFile file) {
+	while (!file.blocks.isEmpty()) {
+	    Block block = file.blocks.values().iterator().next();
+	    if (block.busy) {
+		blockIdle.sleep();
+		continue;
+	    }
+
+	    file.blocks.remove(block.index);
+	    lru.remove(block);
+	}
+    }
+
+    /**
+     * Forget a file that is not open and has nothing cached. The caller must
+     * hold the lock.
+     */
+    private void forgetIfUnused(CachedFile file) {
+	if (file.numOpen == 0 && !file.opening && file.blocks.isEmpty() &&
+	    files.get(file.name) == file)
+	    files.remove(file.name);
+    }
+
+    private void close(CachedFile file) {
+	lock.acquire();
+
+	// the blocks of a removed file are never read from the disk again
+	if (!file.removed)
+	    writeBack(file);
+
+	if (--file.numOpen == 0) {
+	    file.underlying.close();
+	    file.underlying = null;
+
+	    if (file.removed)
+		discardBlocks(file);
+	    forgetIfUnused(file);
+	}
+
+	lock.release();
+    }
+
+    private int read(CachedFile file, int pos, byte[] buf, int offset,
+		     int length, int window) {
+	if (pos < 0 || length < 0 || offset < 0 || offset+length > buf.length)
+	    return -1;
+
+	lock.acquire();
+
+	length = Math.max(0, Math.min(length, file.length - pos));
+	if (length > 0) {
+	    int firstBlock = pos / blockSize;
+	    int lastBlock = (pos+length-1) / blockSize;
+
+	    boolean missed = false;
+	    for (int index=firstBlock; index<=lastBlock; index++) {
+		Block block = file.blocks.get(index);
+		if (block == null) {
+		    numMisses++;
+		    missed = true;
+		}
+		else {
+		    numHits++;
+		    if (block.readAhead) {
+			block.readAhead = false;
+			numReadAheadUsed++;
+		    }
+		}
+	    }
+
+	    // read ahead again once half the window has been used
+	    int ahead = 0;
+	    while (ahead < window && file.blocks.containsKey(lastBlock+1+ahead))
+		ahead++;
+
+	    if (missed || ahead < (window+1)/2)
+		readBlocks(file, firstBlock, lastBlock+1+window, lastBlock+1);
+	}
+
+	int amount = 0;
+	while (amount < length) {
+	    int index = (pos+amount) / blockSize;
+	    int blockOffset = (pos+amount) % blockSize;
+	    int count = Math.min(length - amount, blockSize - blockOffset);
+
+	    // blocks that were read above may have been evicted since
+	    Block block = getBlock(file, index, true);
+	    if (block == null)
+		break;
+	    System.arraycopy(block.data, blockOffset, buf, offset+amount,
+			     count);
+	    amount += count;
+	}
+
+	lock.release();
+	return (amount == 0 && length > 0) ? -1 : amount;
+    }
+
+    private int write(CachedFile file, int pos, byte[] buf, int offset,
+		      int length) {
+	if (pos < 0 || length < 0 || offset < 0 || offset+length > buf.length)
+	    return -1;
+
+	lock.acquire();
+
+	// report a write-back that failed since the last write
+	if (file.writeError) {
+	    file.writeError = false;
+	    lock.release();
+	    return -1;
+	}
+
+	int amount = 0;
+	while (amount < length) {
+	    int index = (pos+amount) / blockSize;
+	    int blockOffset = (pos+amount) % blockSize;
+	    int count = Math.min(length - amount, blockSize - blockOffset);
+
+	    if (file.blocks.containsKey(index))
+		numHits++;
+	    else
+		numMisses++;
+
+	    // a block that is overwritten completely need not be read first
+	    boolean whole = (blockOffset == 0 && count == blockSize);
+	    Block block = getBlock(file, index, !whole);
+	    if (block == null)
+		break;
+	    System.arraycopy(buf, offset+amount, block.data, blockOffset,
+			     count);
+	    block.dirty = true;
+	    amount += count;
+	    file.length = Math.max(file.length, pos+amount);
+	}
+
+	if (file.writeThrough) {
+	    writeBack(file);
+	    if (file.writeError) {
+		file.writeError = false;
+		amount = Math.max(0, Math.min(amount, file.length - pos));
+	    }
+	}
+
+	lock.release();
+	return (amount == 0 && length > 0) ? -1 : amount;
+    }
+
+    private class CachedFile {
+	CachedFile(String name) {
+	    this.name = name;
+	}
+
+	String name;
+	OpenFile underlying = null;
+	int numOpen = 0;
+	/** True while the underlying file is being opened. */
+	boolean opening = false;
+	int length = 0;
+	boolean removed = false;
+	/** True if a write-back failed since the last write. */
+	boolean writeError = false;
+	/** True once a write-back has failed: writes are no longer cached. */
+	boolean writeThrough = false;
+	HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+    }
+
+    private class Block {
+	Block(CachedFile file, int index) {
+	    this.file = file;
+	    this.index = index;
+	}
+
+	CachedFile file;
+	int index;
+	byte[] data = new byte[blockSize];
+	boolean dirty = false;
+	/** True while the block is being read or written back. */
+	boolean busy = false;
+	/** True if the block was read ahead and has not been read since. */
+	boolean readAhead = false;
+    }
+
+    private class CachedOpenFile extends OpenFileWithPosition {
+	CachedOpenFile(CachedFile file) {
+	    super(CachedFileSystem.this, file.name);
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open)
+		return -1;
+
+	    // a read that starts where the last one ended is sequential; the
+	    // window grows as the reads reach new blocks
+	    int lastBlock = (pos + Math.max(length, 1) - 1) / blockSize;
+	    if (pos != nextPosition)
+		window = 0;
+	    else if (lastBlock != this.lastBlock)
+		window = Math.min(Math.max(window*2, 1), maxWindow);
+	    this.lastBlock = lastBlock;
+
+	    int amount =
+		CachedFileSystem.this.read(file, pos, buf, offset, length, window);
+	    if (amount > 0)
+		nextPosition = pos + amount;
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open)
+		return -1;
+
+	    return CachedFileSystem.this.write(file, pos, buf, offset, length);
+	}
+
+	public int length() {
+	    if (!open)
+		return -1;
+
+	    return file.length;
+	}
+
+	public void close() {
+	    if (open) {
+		open = false;
+		CachedFileSystem.this.close(file);
+	    }
+	}
+
+	private CachedFile file;
+	private boolean open = true;
+
+	/** Where the next read starts if the reads are sequential. */
+	private int nextPosition = 0;
+	/** The last block of the last read. */
+	private int lastBlock = -1;
+	/** The number of blocks to read ahead of the next read. */
+	private int window = 0;
+    }
+
+    private FileSystem fileSystem;
+    private int numBlocks, blockSize;
+    private long flushInterval;
+    /** The largest read-ahead window, in blocks. */
+    private int maxWindow;
+
+    private HashMap<String, CachedFile> files =
+	new HashMap<String, CachedFile>();
+    /** Every cached block, least recently used first. */
+    private LinkedHashSet<Block> lru = new LinkedHashSet<Block>();
+
+    private Lock lock = new Lock();
+    private Condition blockIdle = new Condition(lock);
+
+    private int numHits = 0, numMisses = 0, numWriteBacks = 0,
+	numWriteErrors = 0, numEvictions = 0;
+    private int numReadAhead = 0, numReadAheadUsed = 0,
+	numReadAheadWasted = 0;
+
+    private static final int maxReadAhead = 16;
+}
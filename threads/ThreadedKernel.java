@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import nachos.filesys.*;
 
 /**
  * A multi-threaded OS kernel.
@@ -31,11 +32,25 @@ public class ThreadedKernel extends Kernel {
 	else
 	    fileSystem = null;
 
+	if (fileSystem instanceof DiskFileSystem)
+	    diskFileSystem = (DiskFileSystem) fileSystem;
+
 	// start threading
 	new KThread(null);
 
 	alarm  = new Alarm();
 
+	// put a block cache in front of the file system if one is configured
+	int cacheBlocks = Config.getInteger("ThreadedKernel.fileCacheBlocks", 0);
+	if (fileSystem != null && cacheBlocks > 0) {
+	    fileCache = new CachedFileSystem(fileSystem, cacheBlocks,
+		Config.getInteger("ThreadedKernel.fileCacheBlockSize",
+				  defaultFileCacheBlockSize),
+		Config.getInteger("ThreadedKernel.fileCacheFlushInterval",
+				  defaultFileCacheFlushInterval));
+	    fileSystem = fileCache;
+	}
+
 	Machine.interrupt().enable();
     }
 
@@ -69,6 +84,13 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (fileCache != null) {
+	    fileCache.flush();
+	    Lib.debug(dbgFilesys, "file cache: " + fileCache.getStatistics());
+	}
+	if (diskFileSystem != null)
+	    Lib.debug(dbgFilesys, "disk: " + diskFileSystem.getStatistics());
+
 	Machine.halt();
     }
 
@@ -78,6 +100,18 @@ public class ThreadedKernel extends Kernel {
     public static Alarm alarm = null;
     /** Globally accessible reference to the file system. */
     public static FileSystem fileSystem = null;
+    /**
+     * Globally accessible reference to the block cache, or <tt>null</tt> if
+     * <tt>fileSystem</tt> is not cached.
+     */
+    public static CachedFileSystem fileCache = null;
+
+    private static DiskFileSystem diskFileSystem = null;
+
+    private static final int defaultFileCacheBlockSize = 1024;
+    private static final int defaultFileCacheFlushInterval = 100000;
+
+    private static final char dbgFilesys = 'f';
 
     // dummy variables to make javac smarter
     private static RoundRobinScheduler dummy1 = null;
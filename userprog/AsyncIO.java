@@ -0,0 +1,336 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A pool of kernel I/O worker threads that perform file reads and writes on
+ * behalf of user processes, so that a process can keep several operations in
+ * flight. Each file has its own queue of requests, served by one worker at a
+ * time, so requests on the same file complete in the order they were
+ * submitted. A file whose queue is not being served is given to an idle
+ * worker, and if there is none a new worker is started; a request that blocks
+ * (a read from an empty pipe, say) holds up only the requests behind it on
+ * the same file. Workers beyond the initial number exit once they are idle.
+ */
+public class AsyncIO {
+    /**
+     * Allocate a new pool and start its workers.
+     *
+     * @param	numWorkers	the number of worker threads kept even when
+     *				there is nothing to do.
+     */
+    public AsyncIO(int numWorkers) {
+	Lib.assertTrue(numWorkers > 0);
+
+	minWorkers = numWorkers;
+
+	lock.acquire();
+	for (int i=0; i<numWorkers; i++)
+	    startWorker();
+	lock.release();
+    }
+
+    /**
+     * Allocate an empty set of requests for a process.
+     *
+     * @param	maxPending	the maximum number of requests the process may
+     *				have in flight or awaiting collection.
+     * @return	the new set.
+     */
+    public Completions newCompletions(int maxPending) {
+	return new Completions(maxPending);
+    }
+
+    /**
+     * Settle the requests on a file that is about to be closed. Reads that
+     * have not started are completed with -1, and the caller waits for the
+     * writes, so that no data given to <tt>awrite()</tt> is lost. A read
+     * that has already started is left to finish on its own.
+     *
+     * @param	file	the file about to be closed.
+     */
+    public void drain(OpenFile file) {
+	lock.acquire();
+
+	FileQueue queue = files.get(file);
+	while (queue != null) {
+	    for (Iterator<Request> i = queue.requests.iterator(); i.hasNext(); ) {
+		Request request = i.next();
+		if (!request.write) {
+		    i.remove();
+		    request.owner.complete(request, -1);
+		}
+	    }
+
+	    boolean writing = (queue.current != null && queue.current.write);
+	    if (!writing && queue.requests.isEmpty())
+		break;
+
+	    if (UserProcess.sleepInSyscall(lock, drained))
+		break;
+	    queue = files.get(file);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Start another worker thread. The caller must hold <tt>lock</tt>.
+     */
+    private void startWorker() {
+	numWorkers++;
+	new KThread(new Runnable() {
+		public void run() { serve(); }
+	    }).setName("I/O worker " + (nextWorker++)).fork();
+    }
+
+    private void serve() {
+	lock.acquire();
+
+	while (true) {
+	    while (readyFiles.isEmpty()) {
+		if (numWorkers > minWorkers) {
+		    numWorkers--;
+		    lock.release();
+		    return;
+		}
+
+		numIdle++;
+		workAvailable.sleep();
+	    }
+
+	    FileQueue queue = readyFiles.removeFirst();
+	    while (!queue.requests.isEmpty()) {
+		Request request = queue.current = queue.requests.removeFirst();
+		lock.release();
+
+		int result;
+		if (request.write)
+		    result = request.file.write(request.buffer, 0,
+						request.buffer.length);
+		else
+		    result = request.file.read(request.buffer, 0,
+					       request.buffer.length);
+
+		// invalidate before completing, so that no exec can load a
+		// stale image once the write is seen to have finished, even if
+		// the write is never collected
+		if (request.write && result > 0)
+		    UserKernel.coffCache.invalidate(request.file.getName());
+
+		request.owner.complete(request, result);
+
+		lock.acquire();
+		queue.current = null;
+	    }
+
+	    files.remove(queue.file);
+	    drained.wakeAll();
+	}
+    }
+
+    private void submit(Request request) {
+	lock.acquire();
+
+	FileQueue queue = files.get(request.file);
+	if (queue == null) {
+	    queue = new FileQueue(request.file);
+	    files.put(request.file, queue);
+	    readyFiles.add(queue);
+
+	    if (numIdle > 0) {
+		numIdle--;
+		workAvailable.wake();
+	    }
+	    else {
+		startWorker();
+	    }
+	}
+	queue.requests.add(request);
+
+	lock.release();
+    }
+
+    /**
+     * The requests on one file, and the one being performed, if any.
+     */
+    private static class FileQueue {
+	FileQueue(OpenFile file) {
+	    this.file = file;
+	}
+
+	OpenFile file;
+	LinkedList<Request> requests = new LinkedList<Request>();
+	Request current = null;
+    }
+
+    /**
+     * An asynchronous read or write.
+     */
+    public static class Request {
+	Request(Completions owner, int id, OpenFile file, boolean write,
+		byte[] buffer, int userBuffer) {
+	    this.owner = owner;
+	    this.id = id;
+	    this.file = file;
+	    this.write = write;
+	    this.buffer = buffer;
+	    this.userBuffer = userBuffer;
+	}
+
+	/** The ID returned to the process that submitted this. */
+	public int id;
+	/** The file to transfer data through. */
+	public OpenFile file;
+	/** The data read, or the data to write. */
+	public byte[] buffer;
+	/** For a read, the user address to copy the data read to. */
+	public int userBuffer;
+	/** True for a write. */
+	public boolean write;
+	/** The number of bytes transferred, or -1; valid once done. */
+	public int result;
+
+	private Completions owner;
+	private boolean done = false;
+    }
+
+    /**
+     * The asynchronous requests of one process.
+     */
+    public class Completions {
+	private Completions(int maxPending) {
+	    this.maxPending = maxPending;
+	}
+
+	/**
+	 * Start reading or writing a file.
+	 *
+	 * @param	file	the file to transfer data through.
+	 * @param	write	<tt>true</tt> to write <tt>buffer</tt>, or
+	 *			<tt>false</tt> to read into it.
+	 * @param	buffer	the kernel buffer to transfer.
+	 * @param	userBuffer	for a read, the user address the data
+	 *				will be copied to when collected.
+	 * @return	the ID of the request, or -1 if too many are pending.
+	 */
+	public int submit(OpenFile file, boolean write, byte[] buffer,
+			  int userBuffer) {
+	    lock.acquire();
+
+	    if (requests.size() >= maxPending) {
+		lock.release();
+		return -1;
+	    }
+
+	    int id = nextID++;
+	    Request request =
+		new Request(this, id, file, write, buffer, userBuffer);
+	    requests.put(id, request);
+
+	    lock.release();
+
+	    AsyncIO.this.submit(request);
+	    return id;
+	}
+
+	/**
+	 * Collect a completed request, removing it from this set.
+	 *
+	 * @param	id	the ID of the request, or -1 for any request.
+	 * @param	block	<tt>true</tt> to wait until the request
+	 *			completes.
+	 * @return	the completed request, or <tt>null</tt> if there is no
+	 *		such request, if <tt>block</tt> is <tt>false</tt> and it
+	 *		has not completed, or if the caller's process exits while
+	 *		it waits.
+	 */
+	public Request collect(int id, boolean block) {
+	    lock.acquire();
+
+	    Request request;
+	    while (true) {
+		if (id == -1 ? requests.isEmpty() : !requests.containsKey(id)) {
+		    request = null;
+		    break;
+		}
+
+		request = (id == -1) ? findDone() : requests.get(id);
+		if (request != null && request.done) {
+		    requests.remove(request.id);
+		    break;
+		}
+		if (!block) {
+		    request = null;
+		    break;
+		}
+
+		if (UserProcess.sleepInSyscall(lock, completed)) {
+		    request = null;
+		    break;
+		}
+	    }
+
+	    lock.release();
+	    return request;
+	}
+
+	/**
+	 * Test whether a request has been submitted and not collected yet.
+	 *
+	 * @param	id	the ID of the request, or -1 for any request.
+	 * @return	<tt>true</tt> if the request is pending.
+	 */
+	public boolean isPending(int id) {
+	    lock.acquire();
+	    boolean pending =
+		(id == -1) ? !requests.isEmpty() : requests.containsKey(id);
+	    lock.release();
+
+	    return pending;
+	}
+
+	private Request findDone() {
+	    for (Request request : requests.values()) {
+		if (request.done)
+		    return request;
+	    }
+	    return null;
+	}
+
+	private void complete(Request request, int result) {
+	    lock.acquire();
+	    request.result = result;
+	    request.done = true;
+	    completed.wakeAll();
+	    lock.release();
+	}
+
+	private int maxPending;
+	private int nextID = 1;
+	private HashMap<Integer, Request> requests =
+	    new HashMap<Integer, Request>();
+
+	private Lock lock = new Lock();
+	private Condition completed = new Condition(lock);
+    }
+
+    private int minWorkers;
+    private int numWorkers = 0, numIdle = 0, nextWorker = 0;
+
+    /** The files with requests queued or being performed. */
+    private HashMap<OpenFile, FileQueue> files =
+	new HashMap<OpenFile, FileQueue>();
+    /** The files with requests queued and no worker serving them. */
+    private LinkedList<FileQueue> readyFiles = new LinkedList<FileQueue>();
+
+    private Lock lock = new Lock();
+    private Condition workAvailable = new Condition(lock);
+    private Condition drained = new Condition(lock);
+}
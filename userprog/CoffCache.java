@@ -0,0 +1,262 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of parsed COFF executables, keyed by file name. The first time an
+ * executable is loaded, it is opened and parsed by <tt>Coff</tt> as usual,
+ * and the initialized contents of each of its sections are read into memory.
+ * Later loads of the same executable are served from the cache, without
+ * opening the file or reading it again.
+ *
+ * <p>
+ * The least recently loaded executable is discarded when the cache is full.
+ * An entry must be invalidated whenever its file is written, truncated or
+ * removed.
+ */
+public class CoffCache {
+    /**
+     * Allocate a new COFF cache.
+     *
+     * @param	capacity	the maximum number of executables to cache. If
+     *				this is zero, every load reads the executable
+     *				from the file system.
+     */
+    public CoffCache(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+	this.lock = new Lock();
+    }
+
+    /**
+     * Load the executable with the specified name.
+     *
+     * <p>
+     * An executable returned from the cache does not own an open file, and
+     * closing it has no effect.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @return	the executable, or <tt>null</tt> if the file could not be
+     *		opened or is not a valid executable.
+     */
+    public Coff load(String name) {
+	lock.acquire();
+	CachedCoff cached = cache.get(name);
+	int startGeneration = generation;
+	if (cached != null)
+	    hits++;
+	else
+	    misses++;
+	lock.release();
+
+	if (cached != null) {
+	    Lib.debug(dbgCoffCache, "\tcoff cache hit: " + name);
+	    return cached;
+	}
+
+	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+	if (executable == null) {
+	    Lib.debug(dbgCoffCache, "\topen failed");
+	    return null;
+	}
+
+	Coff coff;
+	try {
+	    coff = new Coff(executable);
+	}
+	catch (EOFException e) {
+	    executable.close();
+
+	    Lib.debug(dbgCoffCache, "\tcoff load failed");
+	    return null;
+	}
+
+	if (capacity == 0)
+	    return coff;
+
+	cached = snapshot(executable, coff);
+	if (cached == null)
+	    return coff;
+
+	coff.close();
+
+	lock.acquire();
+	// don't cache a copy that may have been read before an invalidation
+	if (generation == startGeneration) {
+	    cache.put(name, cached);
+	}
+	lock.release();
+
+	return cached;
+    }
+
+    /**
+     * Discard the cached copy of the specified executable, if any. Must be
+     * called whenever the file is written, truncated or removed.
+     *
+     * @param	name	the name of the file.
+     */
+    public void invalidate(String name) {
+	lock.acquire();
+	generation++;
+	cache.remove(name);
+	lock.release();
+    }
+
+    /**
+     * Return the number of loads served from the cache.
+     *
+     * @return	the number of cache hits.
+     */
+    public int getHits() {
+	return hits;
+    }
+
+    /**
+     * Return the number of loads that had to read the executable.
+     *
+     * @return	the number of cache misses.
+     */
+    public int getMisses() {
+	return misses;
+    }
+
+    /**
+     * Read the section contents of a freshly parsed executable into memory.
+     * The section table is parsed again from the image, since the content
+     * offsets are not exposed by <tt>CoffSection</tt>.
+     *
+     * @return	a cached copy of the executable, or <tt>null</tt> if the
+     *		image does not match the sections parsed by <tt>coff</tt>.
+     */
+    private CachedCoff snapshot(OpenFile executable, Coff coff) {
+	int length = executable.length();
+	if (length < headerLength)
+	    return null;
+
+	byte[] image = new byte[length];
+	if (executable.read(0, image, 0, length) != length)
+	    return null;
+
+	int numSections = Lib.bytesToUnsignedShort(image, 2);
+	int optionalHeaderLength = Lib.bytesToUnsignedShort(image, 16);
+	if (numSections != coff.getNumSections())
+	    return null;
+
+	CachedCoff cached = new CachedCoff(coff.getEntryPoint(), numSections);
+
+	for (int s=0; s<numSections; s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    int entry = headerLength + optionalHeaderLength +
+		s*CoffSection.headerLength;
+	    if (entry+CoffSection.headerLength > length)
+		return null;
+
+	    int vaddr = Lib.bytesToInt(image, entry+12);
+	    int size = Lib.bytesToInt(image, entry+16);
+	    int contentOffset = Lib.bytesToInt(image, entry+20);
+	    int flags = Lib.bytesToInt(image, entry+36);
+
+	    if (vaddr/pageSize != section.getFirstVPN() ||
+		Lib.divRoundUp(size, pageSize) != section.getLength())
+		return null;
+
+	    byte[] contents = null;
+	    if (section.isInitialzed()) {
+		if (contentOffset < 0 || contentOffset+size > length)
+		    return null;
+		contents = Arrays.copyOfRange(image, contentOffset,
+					      contentOffset+size);
+	    }
+
+	    cached.setSection(s, new CachedSection(cached, section,
+						   (flags & 0x0020) != 0,
+						   contents));
+	}
+
+	return cached;
+    }
+
+    /**
+     * An executable held in the cache. It does not own an open file.
+     */
+    private static class CachedCoff extends Coff {
+	CachedCoff(int entryPoint, int numSections) {
+	    super();
+
+	    this.entryPoint = entryPoint;
+	    this.sections = new CoffSection[numSections];
+	}
+
+	void setSection(int sectionNumber, CoffSection section) {
+	    sections[sectionNumber] = section;
+	}
+
+	public int getEntryPoint() {
+	    return entryPoint;
+	}
+
+	public void close() {
+	}
+    }
+
+    /**
+     * A section of a cached executable, loaded from a copy of its initialized
+     * contents.
+     */
+    private static class CachedSection extends CoffSection {
+	CachedSection(CachedCoff coff, CoffSection section, boolean executable,
+		      byte[] contents) {
+	    super(coff, section.getName(), executable, section.isReadOnly(),
+		  section.getLength(), section.getFirstVPN());
+
+	    this.initialized = (contents != null);
+	    this.contents = contents;
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Lib.assertTrue(spn>=0 && spn<numPages);
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+	    byte[] memory = Machine.processor().getMemory();
+	    int paddr = ppn*pageSize;
+	    int initlen = 0;
+
+	    if (initialized)
+		initlen = Math.max(0, Math.min(pageSize,
+					       contents.length - spn*pageSize));
+
+	    if (initlen > 0)
+		System.arraycopy(contents, spn*pageSize, memory, paddr, initlen);
+
+	    Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	}
+
+	private byte[] contents;
+    }
+
+    private int capacity;
+    private Lock lock;
+    private int generation = 0;
+    private int hits = 0, misses = 0;
+
+    private LinkedHashMap<String, CachedCoff> cache =
+	new LinkedHashMap<String, CachedCoff>(16, 0.75f, true) {
+	    protected boolean removeEldestEntry(Map.Entry<String, CachedCoff> eldest) {
+		return size() > capacity;
+	    }
+	};
+
+    private static final int headerLength = 20;
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgCoffCache = 'c';
+}
@@ -0,0 +1,195 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The kernel's table of threads blocked in <tt>futex_wait()</tt>, keyed by
+ * the memory word they wait on. A word is named by the address space it
+ * lives in and its address there, so that only threads sharing the word can
+ * wake each other. Waiters on the same word are woken in FIFO order.
+ *
+ * <p>
+ * The table is split into buckets by word, each with its own lock.
+ * <tt>wait()</tt> first reads the word without any lock held, since that may
+ * page it in, and then reads it again while holding the bucket lock, so a
+ * waker that changes the word and then calls <tt>wake()</tt> can never miss a
+ * waiter that saw the old value. A thread paging in a word only holds up the
+ * futex operations on its own bucket.
+ */
+public class FutexTable {
+    /**
+     * Allocate a new, empty futex table.
+     */
+    public FutexTable() {
+	for (int i=0; i<numBuckets; i++)
+	    buckets[i] = new Bucket();
+    }
+
+    /**
+     * Block the current thread until it is woken through the specified word,
+     * if the word still holds the expected value.
+     *
+     * @param	process	the process the current thread belongs to.
+     * @param	space	the address space containing the word.
+     * @param	vaddr	the address of the word in <tt>process</tt>.
+     * @param	offset	the address of the word in <tt>space</tt>.
+     * @param	expected	the value the caller saw in the word.
+     * @return	0 if the thread was woken, or -1 if the word could not be
+     *		read or did not hold <tt>expected</tt>.
+     */
+    public int wait(UserProcess process, Object space, int vaddr, int offset,
+		    int expected) {
+	Key key = new Key(space, offset);
+	Bucket bucket = getBucket(key);
+	byte[] word = new byte[4];
+
+	if (process.readVirtualMemory(vaddr, word) != 4 ||
+	    Lib.bytesToInt(word, 0) != expected)
+	    return -1;
+
+	bucket.lock.acquire();
+
+	// the word is resident now, unless it was just evicted again
+	if (process.readVirtualMemory(vaddr, word) != 4 ||
+	    Lib.bytesToInt(word, 0) != expected ||
+	    process.mustLeave((UThread) KThread.currentThread())) {
+	    bucket.lock.release();
+	    return -1;
+	}
+
+	Waiter waiter = new Waiter(process);
+	LinkedList<Waiter> queue = bucket.waiters.get(key);
+	if (queue == null) {
+	    queue = new LinkedList<Waiter>();
+	    bucket.waiters.put(key, queue);
+	}
+	queue.add(waiter);
+	bucket.numWaits++;
+
+	bucket.lock.release();
+
+	waiter.woken.P();
+	return 0;
+    }
+
+    /**
+     * Wake up to the specified number of threads waiting on a word.
+     *
+     * @param	space	the address space containing the word.
+     * @param	offset	the address of the word in <tt>space</tt>.
+     * @param	count	the maximum number of threads to wake.
+     * @return	the number of threads woken.
+     */
+    public int wake(Object space, int offset, int count) {
+	Key key = new Key(space, offset);
+	Bucket bucket = getBucket(key);
+	int woken = 0;
+
+	bucket.lock.acquire();
+
+	LinkedList<Waiter> queue = bucket.waiters.get(key);
+	while (queue != null && !queue.isEmpty() && woken < count) {
+	    queue.removeFirst().woken.V();
+	    woken++;
+	}
+	if (queue != null && queue.isEmpty())
+	    bucket.waiters.remove(key);
+	bucket.numWakes += woken;
+
+	bucket.lock.release();
+	return woken;
+    }
+
+    /**
+     * Wake every thread of a process that is waiting on any word. Called when
+     * the process exits, so that its threads can leave.
+     *
+     * @param	process	the exiting process.
+     */
+    public void wakeAll(UserProcess process) {
+	for (Bucket bucket : buckets) {
+	    bucket.lock.acquire();
+
+	    for (Iterator<LinkedList<Waiter>> i =
+		     bucket.waiters.values().iterator(); i.hasNext(); ) {
+		LinkedList<Waiter> queue = i.next();
+		for (Iterator<Waiter> j = queue.iterator(); j.hasNext(); ) {
+		    Waiter waiter = j.next();
+		    if (waiter.process == process) {
+			j.remove();
+			waiter.woken.V();
+		    }
+		}
+		if (queue.isEmpty())
+		    i.remove();
+	    }
+
+	    bucket.lock.release();
+	}
+    }
+
+    /**
+     * Return a one-line summary of the table's use, for debugging.
+     */
+    public String getStatistics() {
+	int numWaits = 0, numWakes = 0;
+	for (Bucket bucket : buckets) {
+	    numWaits += bucket.numWaits;
+	    numWakes += bucket.numWakes;
+	}
+	return numWaits + " waits, " + numWakes + " wakes";
+    }
+
+    private Bucket getBucket(Key key) {
+	return buckets[(key.hashCode() & 0x7FFFFFFF) % buckets.length];
+    }
+
+    private static class Key {
+	Key(Object space, int offset) {
+	    this.space = space;
+	    this.offset = offset;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof Key))
+		return false;
+
+	    Key key = (Key) o;
+	    return key.space == space && key.offset == offset;
+	}
+
+	public int hashCode() {
+	    return System.identityHashCode(space)*31 + offset;
+	}
+
+	private Object space;
+	private int offset;
+    }
+
+    private static class Waiter {
+	Waiter(UserProcess process) {
+	    this.process = process;
+	}
+
+	UserProcess process;
+	Semaphore woken = new Semaphore(0);
+    }
+
+    private static class Bucket {
+	HashMap<Key, LinkedList<Waiter>> waiters =
+	    new HashMap<Key, LinkedList<Waiter>>();
+	int numWaits = 0, numWakes = 0;
+
+	Lock lock = new Lock();
+    }
+
+    private Bucket[] buckets = new Bucket[numBuckets];
+
+    private static final int numBuckets = 16;
+}
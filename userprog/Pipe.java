@@ -0,0 +1,207 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A bounded in-kernel byte stream with a read end and a write end, each of
+ * which can be accessed through an <tt>OpenFile</tt>. Readers block while the
+ * pipe is empty, and see end-of-file once every write end is closed. Writers
+ * block while the pipe is full, and then write as much as fits.
+ */
+public class Pipe {
+    /**
+     * Allocate a new pipe, holding up to <tt>UserKernel.pipeSize</tt> bytes.
+     */
+    public Pipe() {
+	this(Config.getInteger("UserKernel.pipeSize", defaultPipeSize));
+    }
+
+    /**
+     * Allocate a new pipe.
+     *
+     * @param	capacity	the number of bytes the pipe can hold.
+     */
+    public Pipe(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new byte[capacity];
+	name = "pipe" + (numPipes++);
+    }
+
+    /**
+     * Return an <tt>OpenFile</tt> that reads from this pipe.
+     *
+     * @return	a new read end.
+     */
+    public OpenFile openForReading() {
+	lock.acquire();
+	numReaders++;
+	lock.release();
+
+	return new End(true);
+    }
+
+    /**
+     * Return an <tt>OpenFile</tt> that writes to this pipe.
+     *
+     * @return	a new write end.
+     */
+    public OpenFile openForWriting() {
+	lock.acquire();
+	numWriters++;
+	lock.release();
+
+	return new End(false);
+    }
+
+    /**
+     * Open another end of a pipe, of the same kind as an open end, so that
+     * another process can be given its own descriptor for it.
+     *
+     * @param	file	an open file.
+     * @return	a new end, or <tt>null</tt> if <tt>file</tt> is not an open
+     *		end of a pipe.
+     */
+    public static OpenFile duplicate(OpenFile file) {
+	if (!(file instanceof End))
+	    return null;
+
+	End end = (End) file;
+	return end.duplicate();
+    }
+
+    /**
+     * Read up to <i>length</i> bytes, waiting until at least one is available
+     * or no write end is open. Fails if the reader's process exits while it
+     * waits.
+     */
+    private int read(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	while (count == 0 && numWriters > 0) {
+	    if (UserProcess.sleepInSyscall(lock, notEmpty)) {
+		lock.release();
+		return -1;
+	    }
+	}
+
+	int amount = Math.min(length, count);
+	for (int i=0; i<amount; i++) {
+	    buf[offset+i] = buffer[head];
+	    head = (head+1) % buffer.length;
+	}
+	count -= amount;
+
+	if (amount > 0)
+	    notFull.wakeAll();
+
+	lock.release();
+	return amount;
+    }
+
+    /**
+     * Write up to <i>length</i> bytes, waiting until there is room for at
+     * least one. Fails if no read end is open, or if the writer's process
+     * exits while it waits.
+     */
+    private int write(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	while (count == buffer.length && numReaders > 0) {
+	    if (UserProcess.sleepInSyscall(lock, notFull)) {
+		lock.release();
+		return -1;
+	    }
+	}
+
+	if (numReaders == 0) {
+	    lock.release();
+	    return -1;
+	}
+
+	int amount = Math.min(length, buffer.length - count);
+	int tail = (head + count) % buffer.length;
+	for (int i=0; i<amount; i++) {
+	    buffer[tail] = buf[offset+i];
+	    tail = (tail+1) % buffer.length;
+	}
+	count += amount;
+
+	if (amount > 0)
+	    notEmpty.wakeAll();
+
+	lock.release();
+	return amount;
+    }
+
+    private void close(boolean reader) {
+	lock.acquire();
+
+	if (reader) {
+	    if (--numReaders == 0)
+		notFull.wakeAll();
+	}
+	else {
+	    if (--numWriters == 0)
+		notEmpty.wakeAll();
+	}
+
+	lock.release();
+    }
+
+    private class End extends OpenFile {
+	End(boolean reader) {
+	    super(null, name + (reader ? ":r" : ":w"));
+
+	    this.reader = reader;
+	}
+
+	public void close() {
+	    if (open) {
+		open = false;
+		Pipe.this.close(reader);
+	    }
+	}
+
+	OpenFile duplicate() {
+	    if (!open)
+		return null;
+
+	    return reader ? openForReading() : openForWriting();
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    if (!open || !reader)
+		return -1;
+
+	    return Pipe.this.read(buf, offset, length);
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    if (!open || reader)
+		return -1;
+
+	    return Pipe.this.write(buf, offset, length);
+	}
+
+	private boolean reader;
+	private boolean open = true;
+    }
+
+    private String name;
+
+    /** The ring buffer; holds <tt>count</tt> bytes starting at <tt>head</tt>. */
+    private byte[] buffer;
+    private int head = 0, count = 0;
+    private int numReaders = 0, numWriters = 0;
+
+    private Lock lock = new Lock();
+    private Condition notEmpty = new Condition(lock);
+    private Condition notFull = new Condition(lock);
+
+    private static int numPipes = 0;
+
+    private static final int defaultPipeSize = 4096;
+}
@@ -0,0 +1,150 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.LinkedList;
+
+/**
+ * The kernel's table of processes, indexed by process ID. The PID space is
+ * bounded; the PID of a process is recycled once it has exited and, if its
+ * parent was still running, been joined. Until then the process is a zombie:
+ * the table keeps only its exit status, so the <tt>UserProcess</tt> itself
+ * can be garbage collected.
+ *
+ * <p>
+ * PID 0 belongs to the first process, the only one that may halt the
+ * machine, and is never recycled.
+ */
+public class ProcessTable {
+    /**
+     * Allocate a new process table.
+     *
+     * @param	maxProcesses	the size of the PID space.
+     */
+    public ProcessTable(int maxProcesses) {
+	Lib.assertTrue(maxProcesses > 0);
+
+	processes = new UserProcess[maxProcesses];
+	zombie = new boolean[maxProcesses];
+	exitStatus = new Integer[maxProcesses];
+	for (int pid=0; pid<maxProcesses; pid++)
+	    freePIDs.add(pid);
+    }
+
+    /**
+     * Assign a PID to a new process. The least recently freed PID is used,
+     * so that a PID is not reused soon after it was reaped.
+     *
+     * @param	process	the new process.
+     * @return	the process's PID, or -1 if the table is full.
+     */
+    public int allocate(UserProcess process) {
+	lock.acquire();
+
+	int pid = -1;
+	if (!freePIDs.isEmpty()) {
+	    pid = freePIDs.removeFirst();
+	    processes[pid] = process;
+	    numLive++;
+	    peakLive = Math.max(peakLive, numLive);
+	}
+
+	lock.release();
+	return pid;
+    }
+
+    /**
+     * Return the running process with the specified PID.
+     *
+     * @param	pid	the PID to look up.
+     * @return	the process, or <tt>null</tt> if no process with that PID is
+     *		running.
+     */
+    public UserProcess get(int pid) {
+	if (pid < 0 || pid >= processes.length)
+	    return null;
+
+	return processes[pid];
+    }
+
+    /**
+     * Record that a process has exited. If it may still be joined, it becomes
+     * a zombie holding its exit status; otherwise its PID is freed.
+     *
+     * @param	pid	the PID of the process.
+     * @param	status	the exit status, or <tt>null</tt> if the process was
+     *			killed.
+     * @param	joinable	<tt>true</tt> if the parent is still running.
+     */
+    public void exit(int pid, Integer status, boolean joinable) {
+	lock.acquire();
+
+	Lib.assertTrue(processes[pid] != null);
+	processes[pid] = null;
+	numLive--;
+
+	if (joinable) {
+	    zombie[pid] = true;
+	    exitStatus[pid] = status;
+	    numZombies++;
+	}
+	else {
+	    free(pid);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Free the PID of a zombie, returning its exit status.
+     *
+     * @param	pid	the PID of the zombie.
+     * @return	the exit status it was given by <tt>exit()</tt>.
+     */
+    public Integer reap(int pid) {
+	lock.acquire();
+
+	Lib.assertTrue(zombie[pid]);
+	Integer status = exitStatus[pid];
+	zombie[pid] = false;
+	exitStatus[pid] = null;
+	numZombies--;
+	free(pid);
+
+	lock.release();
+	return status;
+    }
+
+    /**
+     * Free the PID of a process that was created but never ran.
+     *
+     * @param	pid	the PID to free.
+     */
+    public void abandon(int pid) {
+	exit(pid, null, false);
+    }
+
+    /**
+     * Return a one-line snapshot of the number of processes, for printing
+     * with the kernel's statistics.
+     */
+    public String getStatistics() {
+	return "live " + numLive + ", zombies " + numZombies
+	    + ", peak live " + peakLive;
+    }
+
+    private void free(int pid) {
+	if (pid != 0)
+	    freePIDs.add(pid);
+    }
+
+    private UserProcess[] processes;
+    private boolean[] zombie;
+    private Integer[] exitStatus;
+    private LinkedList<Integer> freePIDs = new LinkedList<Integer>();
+    private int numLive = 0, numZombies = 0, peakLive = 0;
+
+    private Lock lock = new Lock();
+}
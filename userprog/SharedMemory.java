@@ -0,0 +1,138 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The kernel's shared memory segments. A segment is a set of physical pages,
+ * taken from the kernel's free page list and zero-filled, that processes can
+ * attach to their address spaces with <tt>shmat()</tt>. The pages belong to
+ * no process, so they are never paged out; to leave room for the pages that
+ * can be, all the segments together are limited to a fixed number of pages.
+ *
+ * <p>
+ * A process holds a segment from the time it gets it with <tt>shmget()</tt>
+ * until it exits. A segment is destroyed, and its pages freed, once no process
+ * holds it.
+ */
+public class SharedMemory {
+    /**
+     * Allocate a new, empty set of segments.
+     *
+     * @param	maxPages	the most pages all the segments may hold.
+     */
+    public SharedMemory(int maxPages) {
+	this.maxPages = maxPages;
+    }
+
+    /**
+     * Return the segment with the specified key, creating it if it does not
+     * exist, and add the caller to its holders. A key of 0 always creates a
+     * new segment.
+     *
+     * @param	key	the key of the segment.
+     * @param	size	the size of the segment in bytes.
+     * @return	the segment, or <tt>null</tt> if an existing segment is
+     *		smaller than <tt>size</tt> or there is not enough memory.
+     */
+    public Segment get(int key, int size) {
+	int numPages = (size + pageSize - 1) / pageSize;
+	if (size <= 0 || numPages > maxPages)
+	    return null;
+
+	lock.acquire();
+
+	Segment segment = (key == 0) ? null : byKey.get(key);
+	if (segment == null && numUsed + numPages <= maxPages) {
+	    TranslationEntry[] pages =
+		((UserKernel) Kernel.kernel).getFreePages(numPages);
+	    if (pages != null) {
+		numUsed += numPages;
+		byte[] memory = Machine.processor().getMemory();
+		for (int i=0; i<numPages; i++)
+		    Arrays.fill(memory, pages[i].ppn*pageSize,
+				(pages[i].ppn+1)*pageSize, (byte) 0);
+
+		segment = new Segment(nextID++, key, pages);
+		byID.put(segment.id, segment);
+		if (key != 0)
+		    byKey.put(key, segment);
+	    }
+	}
+	else if (segment != null && segment.pages.length < numPages) {
+	    segment = null;
+	}
+	if (segment != null)
+	    segment.holders++;
+
+	lock.release();
+	return segment;
+    }
+
+    /**
+     * Remove a process from the holders of a segment, destroying the segment
+     * if it was the last one.
+     */
+    public void release(Segment segment) {
+	lock.acquire();
+
+	if (--segment.holders == 0) {
+	    byID.remove(segment.id);
+	    if (segment.key != 0)
+		byKey.remove(segment.key);
+	    ((UserKernel) Kernel.kernel).freePages(segment.pages);
+	    numUsed -= segment.pages.length;
+	}
+
+	lock.release();
+    }
+
+    /**
+     * A shared memory segment.
+     */
+    public static class Segment {
+	Segment(int id, int key, TranslationEntry[] pages) {
+	    this.id = id;
+	    this.key = key;
+	    this.pages = pages;
+	}
+
+	/**
+	 * Return the number of pages in this segment.
+	 */
+	public int getNumPages() {
+	    return pages.length;
+	}
+
+	/**
+	 * Return the physical page backing a page of this segment.
+	 *
+	 * @param	page	the page number within the segment.
+	 */
+	public int getPPN(int page) {
+	    return pages[page].ppn;
+	}
+
+	/** The ID returned by <tt>shmget()</tt>. */
+	public final int id;
+
+	private int key;
+	private TranslationEntry[] pages;
+	private int holders = 0;
+    }
+
+    private int maxPages;
+    /** The number of pages held by all the segments. */
+    private int numUsed = 0;
+    private int nextID = 1;
+    private HashMap<Integer, Segment> byID = new HashMap<Integer, Segment>();
+    private HashMap<Integer, Segment> byKey = new HashMap<Integer, Segment>();
+
+    private Lock lock = new Lock();
+
+    private static final int pageSize = Processor.pageSize;
+}
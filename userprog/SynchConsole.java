@@ -66,6 +66,26 @@ public class SynchConsole {
 	return new File(true, false);
     }
 
+    /**
+     * Return another <tt>OpenFile</tt> that can read or write this console
+     * as an open console file can, so that another process can be given its
+     * own descriptor for it.
+     *
+     * @param	file	an open file.
+     * @return	a new file, or <tt>null</tt> if <tt>file</tt> is not an open
+     *		console file.
+     */
+    public OpenFile duplicate(OpenFile file) {
+	if (!(file instanceof File))
+	    return null;
+
+	File console = (File) file;
+	if (!console.canRead && !console.canWrite)
+	    return null;
+
+	return new File(console.canRead, console.canWrite);
+    }
+
     private void receiveInterrupt() {
 	charAvailable = true;
 	readWait.V();
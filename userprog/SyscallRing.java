@@ -0,0 +1,202 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A pair of rings in a process's memory through which it can submit many
+ * system calls with a single trap. The process appends entries to the
+ * submission ring and calls <tt>ring_enter()</tt>; the kernel then runs every
+ * pending entry, in order, and appends its result to the completion ring.
+ *
+ * <p>
+ * The rings live in one block of user memory laid out as follows, where every
+ * field is a 32-bit int:
+ *
+ * <pre>
+ * sqHead, sqTail, cqHead, cqTail,
+ * sq[entries] = { syscall, a0, a1, a2, a3, userData },
+ * cq[entries] = { userData, result }
+ * </pre>
+ *
+ * The heads and tails count entries from the time the rings were registered;
+ * entry <i>i</i> is kept in slot <i>i</i> % <i>entries</i>. The process owns
+ * <tt>sqTail</tt> and <tt>cqHead</tt>, and the kernel owns <tt>sqHead</tt>
+ * and <tt>cqTail</tt>.
+ */
+public class SyscallRing {
+    /**
+     * Register rings at the specified address of a process.
+     *
+     * @param	process	the process whose memory holds the rings.
+     * @param	address	the address of <tt>sqHead</tt>.
+     * @param	entries	the number of entries in each ring.
+     */
+    public SyscallRing(UserProcess process, int address, int entries) {
+	this.process = process;
+	this.address = address;
+	this.entries = entries;
+    }
+
+    /**
+     * Return the size in bytes of rings with the specified number of
+     * entries.
+     */
+    public static int size(int entries) {
+	return headerSize + entries*(sqeSize + cqeSize);
+    }
+
+    /**
+     * Run the pending submissions, up to the specified number, and post their
+     * results. Stops early if the completion ring fills up.
+     *
+     * @param	toSubmit	the maximum number of submissions to run.
+     * @return	the number of submissions run, or -1 if the rings are no
+     *		longer readable.
+     */
+    public int enter(int toSubmit) {
+	byte[] header = new byte[headerSize];
+	if (process.readVirtualMemory(address, header) != headerSize)
+	    return -1;
+
+	int sqHead = Lib.bytesToInt(header, 0);
+	int sqTail = Lib.bytesToInt(header, 4);
+	int cqHead = Lib.bytesToInt(header, 8);
+	int cqTail = Lib.bytesToInt(header, 12);
+
+	int pending = sqTail - sqHead;
+	int room = entries - (cqTail - cqHead);
+	if (pending < 0 || pending > entries || room < 0 || room > entries)
+	    return -1;
+
+	int count = Math.min(Math.min(pending, room), toSubmit);
+	if (count <= 0)
+	    return 0;
+
+	byte[] sqes = new byte[count*sqeSize];
+	if (!transfer(sqOffset, sqeSize, sqHead, sqes, false))
+	    return -1;
+
+	byte[] cqes = new byte[count*cqeSize];
+	for (int i=0; i<count; i++) {
+	    int off = i*sqeSize;
+	    int syscall = Lib.bytesToInt(sqes, off);
+	    int result;
+	    if (canSubmit(syscall)) {
+		result = process.handleSyscall(syscall,
+					       Lib.bytesToInt(sqes, off+4),
+					       Lib.bytesToInt(sqes, off+8),
+					       Lib.bytesToInt(sqes, off+12),
+					       Lib.bytesToInt(sqes, off+16));
+	    }
+	    else {
+		result = -1;
+	    }
+
+	    Lib.bytesFromInt(cqes, i*cqeSize, Lib.bytesToInt(sqes, off+20));
+	    Lib.bytesFromInt(cqes, i*cqeSize+4, result);
+	}
+
+	if (!transfer(cqOffset(), cqeSize, cqTail, cqes, true))
+	    return -1;
+
+	Lib.bytesFromInt(header, 0, sqHead + count);
+	Lib.bytesFromInt(header, 12, cqTail + count);
+	if (process.writeVirtualMemory(address, header, 0, 4) != 4 ||
+	    process.writeVirtualMemory(address+12, header, 12, 4) != 4)
+	    return -1;
+
+	numBatches++;
+	numSubmissions += count;
+	return count;
+    }
+
+    /**
+     * Return a summary of the submissions run through these rings, for
+     * debugging.
+     */
+    public String getStatistics() {
+	return numSubmissions + " submissions in " + numBatches + " batches";
+    }
+
+    /**
+     * Test whether a system call may be submitted through the ring. Only
+     * file system calls may; calls that manage processes or rings may not.
+     */
+    private static boolean canSubmit(int syscall) {
+	switch (syscall) {
+	case syscallCreate:
+	case syscallOpen:
+	case syscallRead:
+	case syscallWrite:
+	case syscallClose:
+	case syscallUnlink:
+	case syscallPipe:
+	case syscallReadv:
+	case syscallWritev:
+	case syscallPread:
+	case syscallPwrite:
+	    return true;
+	default:
+	    return false;
+	}
+    }
+
+    /**
+     * Copy consecutive ring entries, starting at the specified index, between
+     * user memory and a buffer, in at most two pieces.
+     */
+    private boolean transfer(int ringOffset, int entrySize, int index,
+			     byte[] buf, boolean toUser) {
+	int count = buf.length/entrySize;
+	int first = Math.min(count, entries - Math.floorMod(index, entries));
+
+	int[] slots = { Math.floorMod(index, entries), 0 };
+	int[] lengths = { first, count-first };
+
+	int off = 0;
+	for (int i=0; i<2; i++) {
+	    int length = lengths[i]*entrySize;
+	    if (length == 0)
+		continue;
+
+	    int vaddr = address + ringOffset + slots[i]*entrySize;
+	    int amount = toUser ?
+		process.writeVirtualMemory(vaddr, buf, off, length) :
+		process.readVirtualMemory(vaddr, buf, off, length);
+	    if (amount != length)
+		return false;
+
+	    off += length;
+	}
+
+	return true;
+    }
+
+    private int cqOffset() {
+	return sqOffset + entries*sqeSize;
+    }
+
+    private UserProcess process;
+    private int address, entries;
+    private int numBatches = 0, numSubmissions = 0;
+
+    private static final int headerSize = 16;
+    private static final int sqOffset = headerSize;
+    private static final int sqeSize = 24;
+    private static final int cqeSize = 8;
+
+    private static final int
+	syscallCreate = 4,
+	syscallOpen = 5,
+	syscallRead = 6,
+	syscallWrite = 7,
+	syscallClose = 8,
+	syscallUnlink = 9,
+	syscallPipe = 13,
+	syscallReadv = 14,
+	syscallWritev = 15,
+	syscallPread = 16,
+	syscallPwrite = 17;
+}
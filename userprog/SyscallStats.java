@@ -0,0 +1,261 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * Per-syscall counters and latency histograms, measured in simulated ticks,
+ * and an optional trace of every system call. Each process keeps its own
+ * <tt>SyscallStats.Profile</tt>; the profiles of exited processes are merged
+ * into a kernel-wide profile that is printed when the kernel terminates.
+ *
+ * <p>
+ * The trace, enabled by setting <tt>UserKernel.syscallTrace</tt> to a file
+ * name, gets one line per system call:
+ *
+ * <pre>
+ * time pid name(a0, a1, a2, a3) = result &lt;ticks&gt;
+ * </pre>
+ *
+ * Lines are buffered in memory and written to the file by a background
+ * thread, so that tracing does not add file system delays to system calls.
+ */
+public class SyscallStats {
+    /**
+     * Allocate a new set of statistics.
+     *
+     * @param	traceFileName	the file to write a trace to, or
+     *				<tt>null</tt> for no trace.
+     */
+    public SyscallStats(String traceFileName) {
+	if (traceFileName != null) {
+	    traceFile = ThreadedKernel.fileSystem.open(traceFileName, true);
+	    Lib.assertTrue(traceFile != null,
+			   "unable to create trace file " + traceFileName);
+
+	    new KThread(new Runnable() {
+		    public void run() { writeTrace(); }
+		}).setName("syscall trace writer").fork();
+	}
+    }
+
+    /**
+     * Record a completed system call.
+     *
+     * @param	profile	the profile of the calling process.
+     * @param	pid	the ID of the calling process.
+     * @param	syscall	the syscall number.
+     * @param	args	the four syscall arguments.
+     * @param	result	the value returned to the process.
+     * @param	ticks	the simulated time the call took.
+     */
+    public void record(Profile profile, int pid, int syscall, int[] args,
+		       int result, long ticks) {
+	profile.record(syscall, result, ticks);
+
+	if (traceFile != null) {
+	    StringBuffer line = new StringBuffer();
+	    line.append(Machine.timer().getTime()).append(' ').append(pid)
+		.append(' ').append(getName(syscall)).append('(');
+	    for (int i=0; i<args.length; i++) {
+		if (i > 0)
+		    line.append(", ");
+		line.append(args[i]);
+	    }
+	    line.append(") = ").append(result)
+		.append(" <").append(ticks).append(">\n");
+
+	    traceLock.acquire();
+	    traceBuffer.append(line);
+	    if (traceBuffer.length() >= traceChunkSize)
+		traceReady.wake();
+	    traceLock.release();
+	}
+    }
+
+    /**
+     * Merge the profile of an exiting process into the kernel-wide profile.
+     *
+     * @param	profile	the process's profile.
+     */
+    public void merge(Profile profile) {
+	total.merge(profile);
+    }
+
+    /**
+     * Print the kernel-wide profile and finish writing the trace. Called
+     * when the kernel terminates.
+     */
+    public void terminate() {
+	System.out.println("Syscalls:");
+	total.print();
+
+	if (traceFile != null) {
+	    traceLock.acquire();
+	    String rest = traceBuffer.toString();
+	    traceBuffer.setLength(0);
+	    traceLock.release();
+
+	    byte[] bytes = rest.getBytes();
+	    traceFile.write(bytes, 0, bytes.length);
+	    traceFile.close();
+	}
+    }
+
+    /**
+     * Return the name of a system call.
+     *
+     * @param	syscall	the syscall number.
+     * @return	the name of the syscall.
+     */
+    public static String getName(int syscall) {
+	if (syscall >= 0 && syscall < syscallNames.length)
+	    return syscallNames[syscall];
+	else
+	    return "syscall" + syscall;
+    }
+
+    private void writeTrace() {
+	while (true) {
+	    traceLock.acquire();
+	    while (traceBuffer.length() < traceChunkSize)
+		traceReady.sleep();
+	    String chunk = traceBuffer.toString();
+	    traceBuffer.setLength(0);
+	    traceLock.release();
+
+	    byte[] bytes = chunk.getBytes();
+	    traceFile.write(bytes, 0, bytes.length);
+	}
+    }
+
+    /**
+     * The system call statistics of one process, or of the whole kernel.
+     */
+    public static class Profile {
+	/**
+	 * Record a completed system call.
+	 */
+	void record(int syscall, int result, long ticks) {
+	    int i = Math.max(0, Math.min(syscall, maxSyscall-1));
+
+	    count[i]++;
+	    totalTicks[i] += ticks;
+	    maxTicks[i] = Math.max(maxTicks[i], ticks);
+	    histogram[i][bucket(ticks)]++;
+
+	    if (result == -1)
+		errors[i]++;
+	    else if (movesBytes(syscall))
+		bytes[i] += result;
+	}
+
+	private void merge(Profile profile) {
+	    for (int i=0; i<maxSyscall; i++) {
+		count[i] += profile.count[i];
+		errors[i] += profile.errors[i];
+		bytes[i] += profile.bytes[i];
+		totalTicks[i] += profile.totalTicks[i];
+		maxTicks[i] = Math.max(maxTicks[i], profile.maxTicks[i]);
+		for (int b=0; b<numBuckets; b++)
+		    histogram[i][b] += profile.histogram[i][b];
+	    }
+	}
+
+	/**
+	 * Print one line per system call that was made, followed by its
+	 * latency histogram. Bucket <i>b</i> counts calls that took less than
+	 * 2<sup><i>b</i></sup> ticks.
+	 */
+	void print() {
+	    for (int i=0; i<maxSyscall; i++) {
+		if (count[i] == 0)
+		    continue;
+
+		System.out.println("  " + getName(i) + ": calls " + count[i]
+				   + ", errors " + errors[i]
+				   + ", bytes " + bytes[i]
+				   + ", ticks avg " + totalTicks[i]/count[i]
+				   + " max " + maxTicks[i]);
+
+		StringBuffer line = new StringBuffer("    ticks <");
+		for (int b=0; b<numBuckets; b++) {
+		    if (histogram[i][b] != 0)
+			line.append(" ").append(1L << b).append(":")
+			    .append(histogram[i][b]);
+		}
+		System.out.println(line);
+	    }
+	}
+
+	/**
+	 * Return a one-line summary of this profile, for debugging.
+	 */
+	public String getSummary() {
+	    StringBuffer summary = new StringBuffer();
+	    for (int i=0; i<maxSyscall; i++) {
+		if (count[i] != 0)
+		    summary.append(" ").append(getName(i)).append(" ")
+			.append(count[i]).append("/").append(totalTicks[i]);
+	    }
+	    return "syscalls (calls/ticks):" + summary;
+	}
+
+	private static int bucket(long ticks) {
+	    int b = 0;
+	    while (b < numBuckets-1 && ticks >= (1L << b))
+		b++;
+	    return b;
+	}
+
+	private long[] count = new long[maxSyscall];
+	private long[] errors = new long[maxSyscall];
+	private long[] bytes = new long[maxSyscall];
+	private long[] totalTicks = new long[maxSyscall];
+	private long[] maxTicks = new long[maxSyscall];
+	private long[][] histogram = new long[maxSyscall][numBuckets];
+    }
+
+    private static boolean movesBytes(int syscall) {
+	switch (syscall) {
+	case syscallRead:
+	case syscallWrite:
+	case syscallReadv:
+	case syscallWritev:
+	case syscallPread:
+	case syscallPwrite:
+	    return true;
+	default:
+	    return false;
+	}
+    }
+
+    private Profile total = new Profile();
+
+    private OpenFile traceFile = null;
+    private StringBuffer traceBuffer = new StringBuffer();
+    private Lock traceLock = new Lock();
+    private Condition traceReady = new Condition(traceLock);
+
+    private static final int traceChunkSize = 4096;
+    private static final int numBuckets = 24;
+
+    private static final String[] syscallNames = {
+	"halt", "exit", "exec", "join", "creat", "open", "read", "write",
+	"close", "unlink", "mmap", "connect", "accept", "pipe", "readv",
+	"writev", "pread", "pwrite", "ring_setup", "ring_enter", "aread",
+	"awrite", "aio_wait", "aio_poll", "waitAny", "thread_create",
+	"thread_join", "thread_exit", "futex_wait", "futex_wake", "shmget",
+	"shmat", "shmdt", "sbrk", "execio"
+    };
+    private static final int maxSyscall = 64;
+
+    private static final int
+	syscallRead = 6,
+	syscallWrite = 7,
+	syscallReadv = 14,
+	syscallWritev = 15,
+	syscallPread = 16,
+	syscallPwrite = 17;
+}
@@ -24,8 +24,32 @@ public class UThread extends KThread {
 	this.process = process;
     }
 
+    /**
+     * Allocate a new UThread that starts with the specified user registers,
+     * instead of those set by <tt>UserProcess.initRegisters()</tt>. Used for
+     * the threads a process creates with <tt>thread_create()</tt>.
+     *
+     * @param	process	the process the thread belongs to.
+     * @param	tid	the ID of the thread within its process.
+     * @param	initialRegisters	the initial user register set.
+     */
+    public UThread(UserProcess process, int tid, int[] initialRegisters) {
+	this(process);
+
+	Lib.assertTrue(initialRegisters.length == Processor.numUserRegisters);
+
+	this.tid = tid;
+	this.initialRegisters = initialRegisters;
+    }
+
     private void runProgram() {
-	process.initRegisters();
+	if (initialRegisters == null) {
+	    process.initRegisters();
+	}
+	else {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		Machine.processor().writeRegister(i, initialRegisters[i]);
+	}
 	process.restoreState();
 
 	Machine.processor().run();
@@ -53,6 +77,13 @@ public class UThread extends KThread {
 	
 	for (int i=0; i<Processor.numUserRegisters; i++)
 	    Machine.processor().writeRegister(i, userRegisters[i]);
+
+	// if another thread is exiting the process, make this one trap as soon
+	// as it is back in user mode, so that it leaves too
+	if (process.mustLeave(this)) {
+	    Machine.processor().writeRegister(Processor.regPC, leavePC);
+	    Machine.processor().writeRegister(Processor.regNextPC, leavePC);
+	}
 	
 	process.restoreState();
     }
@@ -72,4 +103,16 @@ public class UThread extends KThread {
      * The process to which this thread belongs.
      */
     public UserProcess process;
+
+    /**
+     * The ID of this thread within its process; 0 for the thread that runs
+     * <tt>main()</tt>.
+     */
+    public int tid = 0;
+
+    /** The user registers to start with, or <tt>null</tt>. */
+    private int[] initialRegisters = null;
+
+    /** A misaligned PC, which raises an address error when fetched. */
+    private static final int leavePC = 1;
 }
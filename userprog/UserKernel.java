@@ -25,6 +25,34 @@ public class UserKernel extends ThreadedKernel {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+
+	processTable = new ProcessTable(Config.getInteger("UserKernel.maxProcesses",
+							  defaultMaxProcesses));
+	maxThreads = Config.getInteger("UserKernel.maxThreads", defaultMaxThreads);
+	maxStackPages = Config.getInteger("UserKernel.maxStackPages",
+					  defaultMaxStackPages);
+	maxHeapPages = Config.getInteger("UserKernel.maxHeapPages",
+					 defaultMaxHeapPages);
+	maxOpenFiles = Config.getInteger("UserKernel.maxOpenFiles",
+					 defaultMaxOpenFiles);
+	futexes = new FutexTable();
+	// shared pages can never be evicted, so most of memory is kept for the
+	// pages that can
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	sharedMemory = new SharedMemory(Math.min(Config.getInteger("UserKernel.maxSharedPages",
+								   numPhysPages/4),
+						 numPhysPages/2));
+
+	coffCache = new CoffCache(Config.getInteger("UserKernel.coffCacheSize",
+						    defaultCoffCacheSize));
+
+	String traceFileName = Config.getString("UserKernel.syscallTrace", null);
+	if (traceFileName != null ||
+	    Config.getBoolean("UserKernel.syscallStats", false))
+	    syscallStats = new SyscallStats(traceFileName);
+
+	asyncIO = new AsyncIO(Config.getInteger("UserKernel.ioWorkers",
+						defaultIOWorkers));
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -144,22 +172,107 @@ public class UserKernel extends ThreadedKernel {
             freePhysicalPages.add(pte);
             pte.valid = false;
         }
+        numRemainingPages += pageTable.length;
         memoryLock.release();
     }
+
+    /**
+     * Allocate a single free physical page.
+     *
+     * @return	the ppn of the allocated page, or -1 if no page is free.
+     */
+    public int getFreePage() {
+	TranslationEntry[] page = getFreePages(1);
+	if (page == null)
+	    return -1;
+
+	return page[0].ppn;
+    }
+
+    /**
+     * Free a single physical page allocated by <tt>getFreePage()</tt>.
+     *
+     * @param	ppn	the physical page to free.
+     */
+    public void freePage(int ppn) {
+	freePages(new TranslationEntry[] {
+		new TranslationEntry(0, ppn, false, false, false, false) });
+    }
 	
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	Lib.debug(dbgProcess, "processes: " + processTable.getStatistics());
+	Lib.debug(dbgProcess, "futexes: " + futexes.getStatistics());
+	Lib.debug(dbgProcess, "files: " + UserProcess.fileRefRecord.getStatistics());
+
+	if (syscallStats != null)
+	    syscallStats.terminate();
+
 	super.terminate();
     }
  
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** Globally accessible reference to the process table. */
+    public static ProcessTable processTable;
+
+    /**
+     * The number of threads a process may create with <tt>thread_create()</tt>,
+     * in addition to the one that runs <tt>main()</tt>.
+     */
+    public static int maxThreads;
+
+    /**
+     * The number of pages each stack may grow to. Stack pages only get
+     * memory once they are touched.
+     */
+    public static int maxStackPages;
+
+    /** The number of pages <tt>sbrk()</tt> may grow the heap to. */
+    public static int maxHeapPages;
+
+    /**
+     * The number of file descriptors a process may have open. A process's
+     * file table starts small and grows as needed up to this limit. Files on
+     * disk are also limited by the file system, which for
+     * <tt>StubFileSystem</tt> is 16 open files in all processes together.
+     */
+    public static int maxOpenFiles;
+
+    /** Globally accessible reference to the futex wait queues. */
+    public static FutexTable futexes;
+
+    /** Globally accessible reference to the shared memory segments. */
+    public static SharedMemory sharedMemory;
+
+    /** Globally accessible reference to the cache of parsed executables. */
+    public static CoffCache coffCache;
+
+    /**
+     * Globally accessible reference to the syscall statistics, or
+     * <tt>null</tt> if they are not being collected.
+     */
+    public static SyscallStats syscallStats = null;
+
+    /** Globally accessible reference to the asynchronous I/O workers. */
+    public static AsyncIO asyncIO;
+
 	private LinkedList<TranslationEntry> freePhysicalPages = new LinkedList<TranslationEntry>();
 	private int numRemainingPages;
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
     private Lock memoryLock;
+
+    private static final char dbgProcess = 'a';
+
+    private static final int defaultCoffCacheSize = 8;
+    private static final int defaultIOWorkers = 4;
+    private static final int defaultMaxProcesses = 1024;
+    private static final int defaultMaxThreads = 8;
+    private static final int defaultMaxStackPages = 64;
+    private static final int defaultMaxHeapPages = 256;
+    private static final int defaultMaxOpenFiles = 1024;
 }
@@ -4,8 +4,12 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.util.HashSet;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.io.EOFException;
 import java.util.LinkedList;
 import java.lang.Integer;
@@ -27,21 +31,21 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-	PIDLock.acquire();
+	this.PID = UserKernel.processTable.allocate(this);
+	// the process table is full; exec() fails
+	if (this.PID == -1)
+	    return;
+
 	haltingLock.acquire();
 	numProcesses ++;
 	haltingLock.release();
 	
-	fileTable[0] = ((UserKernel) Kernel.kernel).console.openForReading();
+	installDescriptor(allocateDescriptor(),
+			  ((UserKernel) Kernel.kernel).console.openForReading());
 	fileRefRecord.reference(fileTable[0].getName());
-	fileTable[1] = ((UserKernel) Kernel.kernel).console.openForWriting();
+	installDescriptor(allocateDescriptor(),
+			  ((UserKernel) Kernel.kernel).console.openForWriting());
 	fileRefRecord.reference(fileTable[1].getName());
-	
-	this.PID = maxPID++;
-	PIDLock.release();
-
-	/** initialize cv */
-	joinCV = new Condition(joinLock);
     }
     
     /**
@@ -189,7 +193,13 @@ public class UserProcess {
 		successAmount += pageSize;
 	}
 	
-	//Third read for partial pages
+	//Third read for partial pages, skipped if nothing is left so that no
+	//page past the end of the range is faulted in
+	if (remainingAmount == 0)
+	{
+		virtualMemoryLock.release();
+		return successAmount;
+	}
 	ppn = translate(Machine.processor().pageFromAddress(vaddr), readMode);
 	if (ppn == -1)	
 	{
@@ -279,7 +289,12 @@ public class UserProcess {
 		remainingAmount -= pageSize;
 	}
 	
-	//Third write
+	//Third write, skipped if nothing is left
+	if (remainingAmount == 0)
+	{
+		virtualMemoryLock.release();
+		return successAmount;
+	}
 	ppn = translate(Machine.processor().pageFromAddress(vaddr), writeMode);
 	if (ppn == -1)	{virtualMemoryLock.release(); return successAmount;}
 	paddr = Machine.processor().makeAddress(ppn, 0);
@@ -306,18 +321,8 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 	
-	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-	if (executable == null) {
-	    Lib.debug(dbgProcess, "\topen failed");
-	    return false;
-	}
-
-	try {
-	    coff = new Coff(executable);
-	}
-	catch (EOFException e) {
-		executable.close();
-		
+	coff = UserKernel.coffCache.load(name);
+	if (coff == null) {
 	    Lib.debug(dbgProcess, "\tcoff load failed");
 	    return false;
 	}
@@ -353,18 +358,34 @@ public class UserProcess {
 	// program counter initially points at the program entry point
 	initialPC = coff.getEntryPoint();	
 
-	// next comes the stack; stack pointer initially points to top of it
-	numPages += stackPages;
+	// next comes the heap, which sbrk() grows from empty
+	heapBase = numPages;
+	brk = heapBase*pageSize;
+	numPages += UserKernel.maxHeapPages;
+
+	// then, past a guard page, the stack; stack pointer initially points
+	// to top of it. The heap and the stack only get memory for a page when
+	// it is first touched.
+	numPages++;
+	stackBase = numPages;
+	numPages += UserKernel.maxStackPages;
 	initialSP = numPages*pageSize;
 
-	// and finally reserve 1 page for arguments
+	// then reserve 1 page for arguments
+	argumentVPN = numPages;
 	numPages++;
+	int entryOffset = argumentVPN*pageSize;
+
+	// and finally the stacks of threads created by thread_create(), each
+	// with a guard page below it
+	threadStackBase = numPages;
+	numPages += UserKernel.maxThreads*(UserKernel.maxStackPages+1);
+	attachBase = numPages;
 	
 	if (!loadSections())
 	    return false;
 
-	// store arguments in last page
-	int entryOffset = (numPages-1)*pageSize;
+	// store arguments in the argument page
 	int stringOffset = entryOffset + args.length*4;
 
 	this.argc = args.length;
@@ -392,18 +413,28 @@ public class UserProcess {
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-	if (numPages > Machine.processor().getNumPhysPages()) {
+	if (heapBase + 1 > Machine.processor().getNumPhysPages()) {
 	    coff.close();
 	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
 	    return false;
 	}
 	
-	//set up the pageTable
-	this.pageTable = ((UserKernel) Kernel.kernel).getFreePages(numPages);
-	if (pageTable == null)	return false;
+	//set up the pageTable; only the sections and the argument page get
+	//memory now, the heap and the stacks get it in allocatePage()
+	TranslationEntry[] pages = ((UserKernel) Kernel.kernel).getFreePages(heapBase + 1);
+	if (pages == null)	return false;
+	this.pageTable = new TranslationEntry[numPages];
 	
 	for (int i = 0; i < pageTable.length; i++)
+	{
+		if (i < heapBase)
+			pageTable[i] = pages[i];
+		else if (i == argumentVPN)
+			pageTable[i] = pages[heapBase];
+		else
+			pageTable[i] = new TranslationEntry(i, -1, false, false, false, false);
 		pageTable[i].vpn = i;
+	}
 	
 	// load sections
 	for (int s=0; s<coff.getNumSections(); s++) {
@@ -433,9 +464,10 @@ public class UserProcess {
    	 * Translate vpn to its corresponding ppn, using the page table
    	 * return the ppn corresponding to the vpn, -1 if an error occurs
    	 */
-    private int translate(int vpn, int mode)
+    protected int translate(int vpn, int mode)
     {
     	if (vpn < 0 || vpn >= numPages)	return -1;
+    	if (!pageTable[vpn].valid && !allocatePage(vpn))	return -1;
     	
     	int ppn = pageTable[vpn].ppn;
     	if (mode == writeMode)
@@ -455,9 +487,139 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-		((UserKernel) Kernel.kernel).freePages(pageTable);
+		// attached segments are detached by the time the process exits
+		releasePages(0, attachBase);
     }    
 
+    /**
+     * Test whether a page below the attached segments is part of the address
+     * space: a page of the program, the argument page, a page of the heap
+     * below the break, a page of the stack, or a page of the stack of a
+     * running thread. The guard pages below the stacks never are.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page may be touched.
+     */
+    protected boolean isUsable(int vpn) {
+	if (vpn < (brk + pageSize - 1) / pageSize)
+	    return true;
+	if (vpn >= stackBase && vpn <= argumentVPN)
+	    return true;
+
+	int slotPages = UserKernel.maxStackPages + 1;
+	int slot = (vpn - threadStackBase) / slotPages;
+	if (vpn > threadStackBase && slot < threads.length &&
+	    (vpn - threadStackBase) % slotPages != 0)
+	    return threads[slot] != null && !threadExited[slot];
+
+	return false;
+    }
+
+    /**
+     * Give a zero-filled physical page to a page of the heap or of a stack
+     * the first time it is touched.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page now has memory.
+     */
+    private boolean allocatePage(int vpn) {
+	if (!isUsable(vpn))
+	    return false;
+
+	TranslationEntry[] page = ((UserKernel) Kernel.kernel).getFreePages(1);
+	if (page == null)
+	    return false;
+
+	// another thread may have touched the page while this one waited
+	if (pageTable[vpn].valid) {
+	    ((UserKernel) Kernel.kernel).freePages(page);
+	    return true;
+	}
+
+	byte[] memory = Machine.processor().getMemory();
+	Arrays.fill(memory, page[0].ppn*pageSize, (page[0].ppn+1)*pageSize,
+		    (byte) 0);
+
+	page[0].vpn = vpn;
+	page[0].readOnly = false;
+	page[0].used = false;
+	page[0].dirty = false;
+	pageTable[vpn] = page[0];
+	return true;
+    }
+
+    /**
+     * Release the memory of a range of pages, such as the stack of a thread
+     * that has exited or the top of the heap after <tt>sbrk()</tt> shrinks
+     * it. Pages that never got memory are skipped.
+     *
+     * @param	firstVPN	the first page to release.
+     * @param	count	the number of pages to release.
+     */
+    protected void releasePages(int firstVPN, int count) {
+	LinkedList<TranslationEntry> pages = new LinkedList<TranslationEntry>();
+
+	// the freed entries go back on the kernel's free list, so they are
+	// replaced rather than reused
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++) {
+	    if (pageTable[vpn].valid) {
+		pages.add(pageTable[vpn]);
+		pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						      false, false);
+	    }
+	}
+
+	((UserKernel) Kernel.kernel).freePages(pages.toArray(new TranslationEntry[0]));
+    }
+
+    /**
+     * Map the pages of a shared memory segment into the address space, past
+     * the stacks, where nothing else is mapped.
+     *
+     * @param	firstVPN	the page to map the first page of the segment at.
+     * @param	segment	the segment.
+     * @return	<tt>true</tt> if successful.
+     */
+    protected boolean attachPages(int firstVPN, SharedMemory.Segment segment) {
+	int count = segment.getNumPages();
+	if (firstVPN < attachBase || firstVPN + count > maxAttachedPages)
+	    return false;
+
+	for (int vpn=firstVPN; vpn<Math.min(firstVPN+count, numPages); vpn++) {
+	    if (pageTable[vpn].valid)
+		return false;
+	}
+
+	if (firstVPN + count > numPages) {
+	    pageTable = Arrays.copyOf(pageTable, firstVPN + count);
+	    for (int vpn=numPages; vpn<pageTable.length; vpn++)
+		pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						      false, false);
+	    numPages = pageTable.length;
+	    Machine.processor().setPageTable(pageTable);
+	}
+
+	for (int i=0; i<count; i++)
+	    pageTable[firstVPN+i] = new TranslationEntry(firstVPN+i,
+							 segment.getPPN(i),
+							 true, false, false,
+							 false);
+	return true;
+    }
+
+    /**
+     * Remove the pages mapped by <tt>attachPages()</tt> from the address
+     * space. The physical pages still belong to the segment.
+     *
+     * @param	firstVPN	the first page of the segment.
+     * @param	count	the number of pages in the segment.
+     */
+    protected void detachPages(int firstVPN, int count) {
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false,
+						  false);
+    }
+
     /**
      * Initialize the processor's registers in preparation for running the
      * program loaded into this process. Set the PC register to point at the
@@ -487,8 +649,8 @@ public class UserProcess {
     private int handleHalt() {
 		if (this.PID == 0)
 		{
-			Machine.halt();
-			Lib.assertNotReached("Machine.halt() did not halt machine!");
+			Kernel.kernel.terminate();
+			Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 			return 0;
 		}
 		return 0;
@@ -517,7 +679,7 @@ public class UserProcess {
     	if (!validVirtualAddress(fileNamePointer))
     		{  return terminate();}
     		
-    	int descriptor = getDescriptor();
+    	int descriptor = allocateDescriptor();
     	if (descriptor == -1)	{ return -1;}
     	
     	String fileName = readVirtualMemoryString(fileNamePointer, maxLengthForString);
@@ -525,14 +687,17 @@ public class UserProcess {
 		//System.out.println("filename: " + fileNamePointer + " " + fileName);
     	OpenFile file = ((UserKernel) Kernel.kernel).fileSystem.open(fileName, create);
     	
-    	if(file == null)	{ System.out.print("a\n"); return -1;}
+    	if(file == null)	{ freeDescriptor(descriptor); return -1;}
     	else
     	{
     		int canRef = fileRefRecord.reference(fileName);
-    		if (canRef == -1)	{  return -1;}
+    		if (canRef == -1)	{ file.close(); freeDescriptor(descriptor); return -1;}
     	}
     	
-    	fileTable[descriptor] = file;
+    	//creat() truncates the file, so a cached executable is stale
+    	if (create)	UserKernel.coffCache.invalidate(fileName);
+    	
+    	installDescriptor(descriptor, file);
     	//System.out.print("Successive out\n");
     	return descriptor;
     	
@@ -543,11 +708,10 @@ public class UserProcess {
      */
     private int handleRead (int fileDescriptor, int bufferPointer, int count)
     {
-    	if (!validFileDescriptor(fileDescriptor))	return -1;
+    	OpenFile file = fileForTransfer(fileDescriptor);
+    	if (file == null)	return -1;
     	if (!validVirtualAddress(bufferPointer))	return terminate();
     	
-    	OpenFile file = fileTable[fileDescriptor];
-    	
     	/*Read the contents into the buffer*/
     	byte[] buffer = new byte[count];
     	int numBytesRead = file.read(buffer, 0, count);
@@ -564,38 +728,316 @@ public class UserProcess {
      */
     private int handleWrite(int fileDescriptor, int bufferPointer, int count)
     {
-    	if (!validFileDescriptor(fileDescriptor))	return -1;
+    	OpenFile file = fileForTransfer(fileDescriptor);
+    	if (file == null)	return -1;
     	if (!validVirtualAddress(bufferPointer))	return terminate();
     	
-    	OpenFile file = fileTable[fileDescriptor];
     	byte[] buffer = new byte[count];
     	int numBytesRead = readVirtualMemory(bufferPointer, buffer, 0, count);
     	
     	/*Write the contents to the file*/
     	int numBytesWritten = file.write(buffer, 0, numBytesRead);
-    	if (numBytesWritten < numBytesRead)		return -1;
+    	if (numBytesWritten > 0)	UserKernel.coffCache.invalidate(file.getName());
+    	if (numBytesWritten == -1)		return -1;
     	
+    	/*A pipe may accept only part of the data when it is full*/
     	return numBytesWritten;
     }
     
+    /**
+     * handle readv(). Read into several buffers with a single file access.
+     * return the number of bytes read, or -1 otherwise
+     */
+    private int handleReadv(int fileDescriptor, int iovPointer, int iovCount)
+    {
+    	OpenFile file = fileForTransfer(fileDescriptor);
+    	if (file == null)	return -1;
+    	
+    	int[][] iov = readIOVector(iovPointer, iovCount);
+    	if (iov == null)	return -1;
+    	
+    	byte[] buffer = new byte[ioVectorLength(iov)];
+    	int numBytesRead = file.read(buffer, 0, buffer.length);
+    	if (numBytesRead == -1)		return -1;
+    	
+    	return scatter(iov, buffer, numBytesRead);
+    }
+    
+    /**
+     * handle writev(). Write from several buffers with a single file access.
+     * return the number of bytes written, or -1 otherwise
+     */
+    private int handleWritev(int fileDescriptor, int iovPointer, int iovCount)
+    {
+    	OpenFile file = fileForTransfer(fileDescriptor);
+    	if (file == null)	return -1;
+    	
+    	int[][] iov = readIOVector(iovPointer, iovCount);
+    	if (iov == null)	return -1;
+    	
+    	byte[] buffer = gather(iov);
+    	int numBytesWritten = file.write(buffer, 0, buffer.length);
+    	if (numBytesWritten > 0)	UserKernel.coffCache.invalidate(file.getName());
+    	
+    	return numBytesWritten;
+    }
+    
+    /**
+     * handle pread(). Read at an offset, without using or moving the file
+     * position.
+     * return the number of bytes read, or -1 otherwise
+     */
+    private int handlePread(int fileDescriptor, int bufferPointer, int count, int position)
+    {
+    	OpenFile file = fileForTransfer(fileDescriptor);
+    	if (file == null || count < 0 || position < 0)	return -1;
+    	if (!validVirtualAddress(bufferPointer))	return terminate();
+    	
+    	byte[] buffer = new byte[count];
+    	int numBytesRead = file.read(position, buffer, 0, count);
+    	if (numBytesRead == -1)		return -1;
+    	
+    	return scatter(new int[][] { { bufferPointer, count } }, buffer, numBytesRead);
+    }
+    
+    /**
+     * handle pwrite(). Write at an offset, without using or moving the file
+     * position.
+     * return the number of bytes written, or -1 otherwise
+     */
+    private int handlePwrite(int fileDescriptor, int bufferPointer, int count, int position)
+    {
+    	OpenFile file = fileForTransfer(fileDescriptor);
+    	if (file == null || count < 0 || position < 0)	return -1;
+    	if (!validVirtualAddress(bufferPointer))	return terminate();
+    	
+    	byte[] buffer = gather(new int[][] { { bufferPointer, count } });
+    	int numBytesWritten = file.write(position, buffer, 0, buffer.length);
+    	if (numBytesWritten > 0)	UserKernel.coffCache.invalidate(file.getName());
+    	
+    	return numBytesWritten;
+    }
+    
+    /**
+     * handle ring_setup(). Register submission and completion rings of the
+     * given number of entries at ringPointer, replacing any registered before.
+     * return 0 on success, or -1 otherwise
+     */
+    private int handleRingSetup(int ringPointer, int entries)
+    {
+    	if (entries <= 0 || entries > maxRingEntries)	return -1;
+    	
+    	/*The rings must lie entirely in the address space*/
+    	byte[] rings = new byte[SyscallRing.size(entries)];
+    	if (readVirtualMemory(ringPointer, rings) != rings.length)	return -1;
+    	
+    	/*Reset the heads and tails*/
+    	if (writeVirtualMemory(ringPointer, new byte[16]) != 16)	return -1;
+    	
+    	syscallRing = new SyscallRing(this, ringPointer, entries);
+    	return 0;
+    }
+    
+    /**
+     * handle ring_enter(). Run up to toSubmit pending submissions.
+     * return the number of submissions run, or -1 otherwise
+     */
+    private int handleRingEnter(int toSubmit)
+    {
+    	if (syscallRing == null)	return -1;
+    	
+    	return syscallRing.enter(toSubmit);
+    }
+    
+    /**
+     * handle aread() and awrite(). Start a read or write that completes in
+     * the background; data written is copied from the buffer right away, and
+     * data read is copied to the buffer when the request is collected.
+     * return the ID of the request, or -1 otherwise
+     */
+    private int handleAsyncTransfer(int fileDescriptor, int bufferPointer, int count, boolean write)
+    {
+    	OpenFile file = fileForTransfer(fileDescriptor);
+    	if (file == null || count < 0)	return -1;
+    	if (!validVirtualAddress(bufferPointer))	return terminate();
+    	
+    	byte[] buffer;
+    	if (write)	buffer = gather(new int[][] { { bufferPointer, count } });
+    	else	buffer = new byte[count];
+    	
+    	if (asyncRequests == null)
+    		asyncRequests = UserKernel.asyncIO.newCompletions(maxAsyncRequests);
+    	
+    	return asyncRequests.submit(file, write, buffer, bufferPointer);
+    }
+    
+    /**
+     * handle aio_wait() and aio_poll(). Collect the request with the given ID,
+     * or any request if the ID is -1, and store its result at resultPointer.
+     * return the ID of the collected request, 0 if block is false and it has
+     * not completed, or -1 if there is no such request
+     */
+    private int handleAsyncCollect(int id, int resultPointer, boolean block)
+    {
+    	if (asyncRequests == null)	return -1;
+    	
+    	AsyncIO.Request request = asyncRequests.collect(id, block);
+    	if (request == null)
+    	{
+    		if (block || !asyncRequests.isPending(id))	return -1;
+    		return 0;
+    	}
+    	
+    	int result = request.result;
+    	if (!request.write && result > 0)
+    		result = scatter(new int[][] { { request.userBuffer, result } }, request.buffer, result);
+    	
+    	if (resultPointer != 0 &&
+    		writeVirtualMemory(resultPointer, Lib.bytesFromInt(result)) != 4)
+    		return -1;
+    	
+    	return request.id;
+    }
+    
+    /**
+     * Read an array of iovecs ({ char *base; int length; }) from user memory.
+     * return the { base, length } pairs, or null if the array is invalid
+     */
+    private int[][] readIOVector(int iovPointer, int iovCount)
+    {
+    	if (iovCount < 0 || iovCount > maxIOVectors)	return null;
+    	
+    	byte[] data = new byte[iovCount * 8];
+    	if (readVirtualMemory(iovPointer, data) != data.length)	return null;
+    	
+    	int[][] iov = new int[iovCount][];
+    	long total = 0;
+    	for (int i = 0; i < iovCount; i++)
+    	{
+    		iov[i] = new int[] { Lib.bytesToInt(data, i*8), Lib.bytesToInt(data, i*8 + 4) };
+    		if (iov[i][1] < 0)	return null;
+    		if (iov[i][1] > 0 && !validVirtualAddress(iov[i][0]))	return null;
+    		total += iov[i][1];
+    	}
+    	if (total > Integer.MAX_VALUE)	return null;
+    	
+    	return iov;
+    }
+    
+    private static int ioVectorLength(int[][] iov)
+    {
+    	int total = 0;
+    	for (int[] v : iov)	total += v[1];
+    	return total;
+    }
+    
+    /**
+     * Copy the first count bytes of buffer out to the user buffers of iov.
+     * return count, or -1 if a buffer could not be written
+     */
+    private int scatter(int[][] iov, byte[] buffer, int count)
+    {
+    	int offset = 0;
+    	for (int[] v : iov)
+    	{
+    		int amount = Math.min(v[1], count - offset);
+    		if (amount <= 0)	break;
+    		if (writeVirtualMemory(v[0], buffer, offset, amount) != amount)	return -1;
+    		offset += amount;
+    	}
+    	return count;
+    }
+    
+    /**
+     * Copy the user buffers of iov into one array, stopping at the first
+     * buffer that can't be read completely.
+     */
+    private byte[] gather(int[][] iov)
+    {
+    	byte[] buffer = new byte[ioVectorLength(iov)];
+    	int offset = 0;
+    	for (int[] v : iov)
+    	{
+    		int amount = readVirtualMemory(v[0], buffer, offset, v[1]);
+    		offset += amount;
+    		if (amount < v[1])	break;
+    	}
+    	return offset == buffer.length ? buffer : Arrays.copyOf(buffer, offset);
+    }
+    
+    /**
+     * Return the file a read or write syscall should transfer data through,
+     * or null if the descriptor can't be used for that.
+     */
+    protected OpenFile fileForTransfer(int fileDescriptor)
+    {
+    	if (!validFileDescriptor(fileDescriptor))	return null;
+    	return fileTable[fileDescriptor];
+    }
+    
     /**
      * handle close().
      * return 0 on success, -1 otherwise
      */
-    private int handleClose(int fileDescriptor)
+    protected int handleClose(int fileDescriptor)
     {
     	if (!validFileDescriptor(fileDescriptor))	return -1;
     	
     	OpenFile file = fileTable[fileDescriptor];
     	String fileName = file.getName();
     	
-    	fileTable[fileDescriptor].close();
-    	fileTable[fileDescriptor] = null;
+    	// finish the writes started by awrite() first, or their data is lost
+    	UserKernel.asyncIO.drain(file);
+    	file.close();
+    	freeDescriptor(fileDescriptor);
     	int status = fileRefRecord.unreference(fileName);
     	
   		return status == -1? -1 : 0;
     }
     
+    /**
+     * handle mmap(). Mapping files needs demand paging, so this kernel always
+     * fails; <tt>VMProcess</tt> overrides it.
+     * return the length of the file on success, or -1 otherwise
+     */
+    protected int handleMmap(int fileDescriptor, int address)
+    {
+    	return -1;
+    }
+    
+    /**
+     * handle pipe(). Store the read and write descriptors of a new pipe in
+     * the two ints at fdsPointer.
+     * return 0 on success, or -1 otherwise
+     */
+    private int handlePipe(int fdsPointer)
+    {
+    	if (!validVirtualAddress(fdsPointer))	return terminate();
+    	
+    	int readDescriptor = allocateDescriptor();
+    	if (readDescriptor == -1)	return -1;
+    	int writeDescriptor = allocateDescriptor();
+    	if (writeDescriptor == -1)	{ freeDescriptor(readDescriptor); return -1;}
+    	
+    	byte[] fds = new byte[8];
+    	Lib.bytesFromInt(fds, 0, readDescriptor);
+    	Lib.bytesFromInt(fds, 4, writeDescriptor);
+    	if (writeVirtualMemory(fdsPointer, fds) != fds.length)
+    	{
+    		freeDescriptor(readDescriptor);
+    		freeDescriptor(writeDescriptor);
+    		return -1;
+    	}
+    	
+    	Pipe pipe = new Pipe();
+    	installDescriptor(readDescriptor, pipe.openForReading());
+    	installDescriptor(writeDescriptor, pipe.openForWriting());
+    	fileRefRecord.reference(fileTable[readDescriptor].getName());
+    	fileRefRecord.reference(fileTable[writeDescriptor].getName());
+    	
+    	return 0;
+    }
+    
     /**
      * handle unlink().return 0 on success, or -1 otherwise
      */
@@ -603,21 +1045,10 @@ public class UserProcess {
     {
     	if (!validVirtualAddress(namePointer))	return terminate();
     	String name = readVirtualMemoryString(namePointer, maxLengthForString);
+    	UserKernel.coffCache.invalidate(name);
     	
-    	for (int i = 0; i < maxNumFiles; i++)
-    	{
-    		if (fileTable[i] != null && fileTable[i].getName() == name)
-    		{
-    			fileTable[i].close();
-    			fileTable[i] = null;
-    			
-    			fileRefRecord.markAsDelete(name);
-    			int status = fileRefRecord.unreference(name);	//This will call remove() if necessary
-    			
-				if (status == -1)	return -1;
-				else	return 0;
-    		}
-    	}
+    	//descriptors still open on the file keep working; the file is
+    	//removed when the last one, in any process, is closed
     	fileRefRecord.markAsDelete(name);
     	if (fileRefRecord.deleteIfNecessary(name))	return 0;
     	else	return -1;
@@ -629,6 +1060,25 @@ public class UserProcess {
 	 */
 	private int handleExit(int status){
 		//System.out.println("EXITING!" + PID);
+		// make the other threads leave first; each one traps as soon as it
+		// runs user code again
+		threadLock.acquire();
+		if(exitingThread != null){
+			// another thread is already exiting the process
+			threadLock.release();
+			exitThread(status);
+		}
+		exitingThread = KThread.currentThread();
+		threadLock.release();
+		UserKernel.futexes.wakeAll(this);
+		wakeSleepers();
+		threadLock.acquire();
+		threadExitedCV.wakeAll();
+		while(numThreads > 1){
+			threadExitedCV.sleep();
+		}
+		threadLock.release();
+
 		// discard all files
 		for(int i = 0; i < fileTable.length; i++){
 			if(validFileDescriptor(i)){
@@ -636,26 +1086,48 @@ public class UserProcess {
 			}
 		}
 
+		if (syscallRing != null)
+			Lib.debug(dbgProcess, "\tsyscall ring: " + syscallRing.getStatistics());
+		if (UserKernel.syscallStats != null)
+		{
+			Lib.debug(dbgProcess, "\t" + syscallProfile.getSummary());
+			UserKernel.syscallStats.merge(syscallProfile);
+		}
+		
+		// detach and let go of shared memory
+		for(Map.Entry<Integer, SharedMemory.Segment> e : attachedSegments.entrySet()){
+			detachPages(e.getKey(), e.getValue().getNumPages());
+		}
+		attachedSegments.clear();
+		for(SharedMemory.Segment segment : sharedSegments.values()){
+			UserKernel.sharedMemory.release(segment);
+		}
+		sharedSegments.clear();
+
 		// free memories
 		unloadSections();
 
-		// update information when exiting for parent
-		returnVal = status;
-		ifExited = true;
-
 		// if this process owns any child, make them discard the parent
-		for(UserProcess c : children){
-			if(!c.ifExited){
-				c.discardParent();
-			}
+		childLock.acquire();
+		exiting = true;
+		for(UserProcess c : children.values()){
+			c.discardParent();
+		}
+		// nobody can join the exited children any more
+		for(int pid : exitedChildren){
+			UserKernel.processTable.reap(pid);
 		}
 		// clear the children of this process
 		children.clear();
+		exitedChildren.clear();
+		childLock.release();
 		
-		// wake up all joiners
-		joinLock.acquire();
-		joinCV.wakeAll();
-		joinLock.release();
+		// hand the exit status to the parent, waking only its joiners; an
+		// orphan has nobody to join it, so its PID is freed at once
+		UserProcess p = parent;
+		if(p == null || !p.childExited(this, status)){
+			UserKernel.processTable.exit(PID, status, false);
+		}
 
 		// if last process, halt the machine
 		haltingLock.acquire();
@@ -669,6 +1141,409 @@ public class UserProcess {
 		return 0;
 	}
 
+	/**
+	 * Called by an exiting child: turn it into a zombie until it is joined
+	 * and wake the threads of this process waiting for a child.
+	 * @return false if this process is exiting too and will not join it
+	 */
+	private boolean childExited(UserProcess child, Integer status){
+		childLock.acquire();
+		boolean joinable = !exiting && children.remove(child.PID) != null;
+		if(joinable){
+			UserKernel.processTable.exit(child.PID, status, true);
+			exitedChildren.add(child.PID);
+			childExitedCV.wakeAll();
+		}
+		childLock.release();
+		return joinable;
+	}
+
+	/**
+	 * Replace the console at descriptors 0 and 1 of a new process with other
+	 * files.
+	 */
+	private void redirect(OpenFile[] stdio){
+		for(int i = 0; i < stdio.length; i++){
+			handleClose(i);
+		}
+		for(int i = 0; i < stdio.length; i++){
+			installDescriptor(allocateDescriptor(), stdio[i]);
+			fileRefRecord.reference(stdio[i].getName());
+		}
+	}
+
+	/**
+	 * Release a process that was created but could not be started.
+	 */
+	private void abandon(){
+		handleClose(0);
+		handleClose(1);
+
+		haltingLock.acquire();
+		numProcesses --;
+		haltingLock.release();
+
+		UserKernel.processTable.abandon(PID);
+	}
+
+	/**
+	 * handle thread_create(): start a thread that shares this process's
+	 * address space and files, on a stack of its own.
+	 * @param entry address of the function the thread runs
+	 * @param argument passed to the function
+	 * @param returnAddress where the function returns to; set by the stub
+	 * in start.s to code that calls thread_exit() with the return value
+	 * @return ID of the new thread, or -1 on error
+	 */
+	private int handleThreadCreate(int entry, int argument, int returnAddress){
+		if(!validVirtualAddress(entry) || !validVirtualAddress(returnAddress)){
+			return -1;
+		}
+
+		threadLock.acquire();
+
+		int slot = -1;
+		for(int i = 0; i < threads.length && exitingThread == null; i++){
+			if(threads[i] == null){
+				slot = i;
+				break;
+			}
+		}
+		if(slot == -1){
+			threadLock.release();
+			return -1;
+		}
+
+		int[] registers = new int[Processor.numUserRegisters];
+		registers[Processor.regPC] = entry;
+		// leave room for the function to save its argument registers
+		registers[Processor.regSP] = (stackVPN(slot)+UserKernel.maxStackPages)*pageSize - 16;
+		registers[Processor.regA0] = argument;
+		registers[Processor.regRA] = returnAddress;
+
+		UThread thread = new UThread(this, slot+1, registers);
+		threads[slot] = thread;
+		threadExited[slot] = false;
+		numThreads++;
+
+		threadLock.release();
+
+		thread.setName("process " + PID + " thread " + thread.tid).fork();
+		return thread.tid;
+	}
+
+	/**
+	 * handle thread_join(): wait for a thread created by thread_create()
+	 * to exit. Each thread can be joined once.
+	 * @param tid ID of the thread
+	 * @param status A pointer to store its exit status, or 0
+	 * @return 0 on success, -1 if there is no such thread to join
+	 */
+	private int handleThreadJoin(int tid, int status){
+		if(status != 0 && !validVirtualAddress(status)){
+			return -1;
+		}
+
+		int slot = tid - 1;
+		if(slot < 0 || slot >= threads.length || KThread.currentThread() == threads[slot]){
+			return -1;
+		}
+
+		threadLock.acquire();
+
+		UThread thread = threads[slot];
+		while(thread != null && threads[slot] == thread && !threadExited[slot]
+		      && exitingThread == null){
+			threadExitedCV.sleep();
+		}
+		// joined by another thread meanwhile, or the process is exiting
+		if(thread == null || threads[slot] != thread || !threadExited[slot]){
+			threadLock.release();
+			return -1;
+		}
+		threads[slot] = null;
+		int returnVal = threadStatus[slot];
+
+		threadLock.release();
+
+		if(status != 0){
+			writeVirtualMemory(status, Lib.bytesFromInt(returnVal));
+		}
+		return 0;
+	}
+
+	/**
+	 * handle thread_exit(): end the calling thread. If it is the last
+	 * thread of this process, the process exits with the same status.
+	 * @param status exit status, for thread_join()
+	 * @return never return
+	 */
+	private int handleThreadExit(int status){
+		exitThread(status);
+		return 0;
+	}
+
+	/**
+	 * End the current thread, releasing its stack and waking its joiners.
+	 * Never returns.
+	 */
+	private void exitThread(int status){
+		UThread thread = (UThread) KThread.currentThread();
+
+		threadLock.acquire();
+		if(numThreads == 1 && exitingThread == null){
+			threadLock.release();
+			handleExit(status);
+		}
+
+		numThreads --;
+		if(thread.tid > 0){
+			int slot = thread.tid - 1;
+			releasePages(stackVPN(slot), UserKernel.maxStackPages);
+			threadExited[slot] = true;
+			threadStatus[slot] = status;
+		}
+		threadExitedCV.wakeAll();
+		threadLock.release();
+
+		KThread.finish();
+	}
+
+	/**
+	 * handle futex_wait(): sleep until another thread calls futex_wake() on
+	 * the same word, unless the word no longer holds the expected value
+	 * @param address A pointer to a word-aligned int
+	 * @param expected the value the caller last saw there
+	 * @return 0 when woken, -1 if the word changed or is invalid
+	 */
+	private int handleFutexWait(int address, int expected){
+		if(address % 4 != 0 || !validVirtualAddress(address)){
+			return -1;
+		}
+
+		return UserKernel.futexes.wait(this, futexSpace(address), address,
+					       futexOffset(address), expected);
+	}
+
+	/**
+	 * handle futex_wake(): wake threads sleeping in futex_wait() on a word
+	 * @param address A pointer to a word-aligned int
+	 * @param count the maximum number of threads to wake
+	 * @return the number of threads woken, -1 if the word is invalid
+	 */
+	private int handleFutexWake(int address, int count){
+		if(address % 4 != 0 || !validVirtualAddress(address) || count < 0){
+			return -1;
+		}
+
+		return UserKernel.futexes.wake(futexSpace(address),
+					       futexOffset(address), count);
+	}
+
+	/**
+	 * Return the address space a futex word lives in: the shared memory
+	 * segment it is part of, so that processes sharing it can wake each
+	 * other, or else this process.
+	 */
+	private Object futexSpace(int address){
+		Map.Entry<Integer, SharedMemory.Segment> e = attachedSegmentAt(address);
+		return (e != null) ? e.getValue() : this;
+	}
+
+	/**
+	 * Return the address of a futex word within the space returned by
+	 * futexSpace().
+	 */
+	private int futexOffset(int address){
+		Map.Entry<Integer, SharedMemory.Segment> e = attachedSegmentAt(address);
+		return (e != null) ? address - e.getKey()*pageSize : address;
+	}
+
+	/**
+	 * Return the attached segment containing an address, keyed by its
+	 * first page, or null.
+	 */
+	private Map.Entry<Integer, SharedMemory.Segment> attachedSegmentAt(int address){
+		int vpn = Processor.pageFromAddress(address);
+		Map.Entry<Integer, SharedMemory.Segment> e = attachedSegments.floorEntry(vpn);
+		if(e == null || vpn >= e.getKey() + e.getValue().getNumPages()){
+			return null;
+		}
+		return e;
+	}
+
+	/**
+	 * handle shmget(): get the shared memory segment with a key, creating
+	 * it if needed. The process holds the segment until it exits.
+	 * @param key the key of the segment, or 0 for a new private segment
+	 * @param size the size of the segment in bytes
+	 * @return ID of the segment, or -1 on error
+	 */
+	private int handleShmget(int key, int size){
+		SharedMemory.Segment segment = UserKernel.sharedMemory.get(key, size);
+		if(segment == null){
+			return -1;
+		}
+
+		if(sharedSegments.containsKey(segment.id)){
+			// this process already holds it
+			UserKernel.sharedMemory.release(segment);
+		}
+		else{
+			sharedSegments.put(segment.id, segment);
+		}
+		return segment.id;
+	}
+
+	/**
+	 * handle shmat(): map a segment this process holds at an address
+	 * @param id ID returned by shmget()
+	 * @param address page-aligned address past the stack
+	 * @return address on success, -1 on error
+	 */
+	private int handleShmat(int id, int address){
+		SharedMemory.Segment segment = sharedSegments.get(id);
+		if(segment == null || address < 0 || Processor.offsetFromAddress(address) != 0){
+			return -1;
+		}
+
+		int firstVPN = Processor.pageFromAddress(address);
+		if(!attachPages(firstVPN, segment)){
+			return -1;
+		}
+		attachedSegments.put(firstVPN, segment);
+
+		return address;
+	}
+
+	/**
+	 * handle shmdt(): unmap the segment attached at an address
+	 * @param address the address returned by shmat()
+	 * @return 0 on success, -1 on error
+	 */
+	private int handleShmdt(int address){
+		if(address < 0 || Processor.offsetFromAddress(address) != 0){
+			return -1;
+		}
+
+		int firstVPN = Processor.pageFromAddress(address);
+		SharedMemory.Segment segment = attachedSegments.remove(firstVPN);
+		if(segment == null){
+			return -1;
+		}
+		detachPages(firstVPN, segment.getNumPages());
+
+		return 0;
+	}
+
+	/**
+	 * Test whether a thread must leave because another thread of this
+	 * process is exiting it. Called by <tt>UThread.restoreState()</tt>.
+	 *
+	 * @param	thread	a thread of this process.
+	 * @return	<tt>true</tt> if the thread must not run user code again.
+	 */
+	public boolean mustLeave(UThread thread){
+		KThread exiting = exitingThread;
+		return exiting != null && exiting != thread;
+	}
+
+	/**
+	 * Wait on a condition variable in a system call, as with
+	 * <tt>condition.sleep()</tt>, but also wake up if another thread exits
+	 * the process the current thread belongs to. A kernel thread that does
+	 * not belong to a process just sleeps.
+	 *
+	 * @param	lock	the lock of <tt>condition</tt>, held by the caller.
+	 * @param	condition	the condition variable to wait on.
+	 * @return	<tt>true</tt> if the current thread must leave, in which
+	 *		case the system call should give up and return -1.
+	 */
+	public static boolean sleepInSyscall(final Lock lock,
+					     final Condition condition){
+		KThread current = KThread.currentThread();
+		if(!(current instanceof UThread)){
+			condition.sleep();
+			return false;
+		}
+
+		UThread thread = (UThread) current;
+		UserProcess process = thread.process;
+		// the caller holds lock until it sleeps, so an exiting thread that
+		// runs this cannot wake it too early
+		Runnable waker = new Runnable(){
+			public void run(){
+				lock.acquire();
+				condition.wakeAll();
+				lock.release();
+			}
+		};
+
+		process.threadLock.acquire();
+		if(process.mustLeave(thread)){
+			process.threadLock.release();
+			return true;
+		}
+		process.sleepers.add(waker);
+		process.threadLock.release();
+
+		condition.sleep();
+
+		process.threadLock.acquire();
+		process.sleepers.remove(waker);
+		boolean leave = process.mustLeave(thread);
+		process.threadLock.release();
+		return leave;
+	}
+
+	/**
+	 * Wake the threads of this process that are waiting in
+	 * <tt>sleepInSyscall()</tt>. Called once <tt>exitingThread</tt> is set.
+	 */
+	private void wakeSleepers(){
+		threadLock.acquire();
+		LinkedList<Runnable> wakers = new LinkedList<Runnable>(sleepers);
+		threadLock.release();
+
+		for(Runnable waker : wakers){
+			waker.run();
+		}
+	}
+
+	/**
+	 * Return the first page of the stack of a thread slot, above its guard
+	 * page.
+	 */
+	private int stackVPN(int slot){
+		return threadStackBase + slot*(UserKernel.maxStackPages+1) + 1;
+	}
+
+	/**
+	 * handle sbrk(): move the break, the end of the heap
+	 * @param increment the number of bytes to grow the heap by, or to shrink
+	 * it by if negative
+	 * @return the old break, -1 if the heap would shrink below its start or
+	 * grow past its limit
+	 */
+	private int handleSbrk(int increment){
+		long newBrk = (long) brk + increment;
+		if(newBrk < heapBase*pageSize || newBrk > (heapBase+UserKernel.maxHeapPages)*pageSize){
+			return -1;
+		}
+
+		int oldBrk = brk;
+		brk = (int) newBrk;
+
+		// pages past the new break lose their memory
+		int oldPages = (oldBrk + pageSize - 1) / pageSize;
+		int newPages = (brk + pageSize - 1) / pageSize;
+		if(newPages < oldPages){
+			releasePages(newPages, oldPages - newPages);
+		}
+
+		return oldBrk;
+	}
+
 	/**
 	 * set parent to null
 	 */
@@ -684,6 +1559,60 @@ public class UserProcess {
 	 * @return PID of child process
 	 */
 	private int handleExec(int fileName, int argc, int argv){
+		return handleExec(fileName, argc, argv, null);
+	}
+
+	/**
+	 * handle execio(): exec() with the child's descriptors 0 and 1 referring
+	 * to the pipes or console of the two descriptors at fdsPointer
+	 * @return child PID, -1 on error
+	 */
+	private int handleExecio(int fileName, int argc, int argv, int fdsPointer){
+		if(!validVirtualAddress(fileName) || !validVirtualAddress(argv)
+		   || !validVirtualAddress(fdsPointer)){
+			return terminate();
+		}
+
+		byte[] fds = new byte[8];
+		if(readVirtualMemory(fdsPointer, fds) != fds.length){
+			return -1;
+		}
+
+		OpenFile[] stdio = new OpenFile[2];
+		for(int i = 0; i < stdio.length; i++){
+			int fd = Lib.bytesToInt(fds, i * 4);
+			if(validFileDescriptor(fd)){
+				stdio[i] = Pipe.duplicate(fileTable[fd]);
+				if(stdio[i] == null){
+					stdio[i] = ((UserKernel) Kernel.kernel).console.duplicate(fileTable[fd]);
+				}
+			}
+			// only pipes and the console can be passed
+			if(stdio[i] == null){
+				for(int j = 0; j < i; j++){
+					stdio[j].close();
+				}
+				return -1;
+			}
+		}
+
+		int pid = handleExec(fileName, argc, argv, stdio);
+		if(pid == -1){
+			// closing twice is harmless if the child already did
+			for(OpenFile file : stdio){
+				file.close();
+			}
+		}
+		return pid;
+	}
+
+	/**
+	 * Start a child process.
+	 * @param stdio the files for the child's descriptors 0 and 1, or null
+	 *        for the console
+	 * @return child PID, -1 on error
+	 */
+	private int handleExec(int fileName, int argc, int argv, OpenFile[] stdio){
 		//verify if filename argv valid
 		if(!validVirtualAddress(fileName) || !validVirtualAddress(argv)){
 			return terminate();
@@ -716,9 +1645,22 @@ public class UserProcess {
 
 		//child
 		UserProcess newchild = newUserProcess();
-		children.add(newchild);
+		if(newchild.PID == -1)
+			return -1;
+		childLock.acquire();
+		children.put(newchild.PID, newchild);
+		childLock.release();
 		newchild.parent = this;
-		newchild.execute(fileNameString, arguments);
+		if(stdio != null){
+			newchild.redirect(stdio);
+		}
+		if(!newchild.execute(fileNameString, arguments)){
+			childLock.acquire();
+			children.remove(newchild.PID);
+			childLock.release();
+			newchild.abandon();
+			return -1;
+		}
 
 		return newchild.PID;
 	}
@@ -738,50 +1680,79 @@ public class UserProcess {
 		}
 		//System.out.println("738");
 
-		UserProcess joinChild = findChild(pid);
+		childLock.acquire();
 
-		//System.out.println("742");
+		//joining nonchild, or a child already joined
+		if(!children.containsKey(pid) && !exitedChildren.contains(pid)){
+			childLock.release();
+			return -1;
+		}
+
+		while(!exitedChildren.contains(pid)){
+			if(sleepInSyscall(childLock, childExitedCV)){
+				childLock.release();
+				return -1;
+			}
+		}
+		exitedChildren.remove(pid);
+		Integer returnVal = UserKernel.processTable.reap(pid);
+		childLock.release();
+
+		return reportExitStatus(returnVal, status);
+	}
 
-		//joining nonchild
-		if(joinChild == null){
+	/**
+	 * handle waitAny(): join whichever child exits first
+	 * @param status A pointer to store the exit status of the child
+	 * @return PID of the joined child, or -1 if there is no child to join
+	 */
+	private int handleWaitAny(int status){
+		if(!validVirtualAddress(status)){
 			return -1;
-		} 
+		}
 
-		//System.out.println("749");
-		
-		joinLock.acquire();
-		while(!joinChild.ifExited){
-			//System.out.println(joinChild.ifExited);
-			joinCV.sleep();
+		childLock.acquire();
+
+		if(children.isEmpty() && exitedChildren.isEmpty()){
+			childLock.release();
+			return -1;
 		}
-		joinLock.release();
 
-		//System.out.println("755");
+		while(exitedChildren.isEmpty()){
+			if(sleepInSyscall(childLock, childExitedCV)){
+				childLock.release();
+				return -1;
+			}
+		}
+		int pid = exitedChildren.iterator().next();
+		exitedChildren.remove(pid);
+		Integer returnVal = UserKernel.processTable.reap(pid);
+		childLock.release();
+
+		reportExitStatus(returnVal, status);
+		return pid;
+	}
 
-		if(joinChild.returnVal == null){
+	/**
+	 * Store the exit status of a joined child at status.
+	 * @return 1 if the child exited normally, 0 otherwise
+	 */
+	private int reportExitStatus(Integer returnVal, int status){
+		if(returnVal == null){
 			return 0;
 		} 
 
-		writeVirtualMemory(status, Lib.bytesFromInt(joinChild.returnVal));
+		writeVirtualMemory(status, Lib.bytesFromInt(returnVal));
 
 		return 1;
 	}
-
-	private UserProcess findChild(int pid){
-		for(UserProcess c: children){
-			if(c.PID == pid){
-				return c;
-			}
-		}
-		return null;
-	}
     
     /**
      * check if one filedescriptor is valid
      */
     private boolean validFileDescriptor(int fileDescriptor)
     {
-    	return 0 <= fileDescriptor && fileDescriptor < maxNumFiles && fileTable[fileDescriptor] != null;
+    	return 0 <= fileDescriptor && fileDescriptor < fileTable.length && fileTable[fileDescriptor] != null;
     }
     
     /**
@@ -793,23 +1764,48 @@ public class UserProcess {
     	return 0 <= pageNum && pageNum < numPages;
     }
     
-    private int terminate(){
+    protected int terminate(){
     	handleExit(0);
     	return -1;
     }
     
     /**
-     * get the next available position of pageTable. 
+     * Reserve the lowest free file descriptor, growing the file table if every
+     * slot is in use. The descriptor stays reserved until installDescriptor()
+     * fills it or freeDescriptor() gives it back, so that another thread
+     * cannot take it while this one opens the file.
      * return the wanted descriptor on success or -1 if none
      */
-	private int getDescriptor()
+	private int allocateDescriptor()
 	{
-		for (int i = 0; i < maxNumFiles; i++)
+		int descriptor = usedDescriptors.nextClearBit(0);
+		if (descriptor >= UserKernel.maxOpenFiles)	return -1;
+		
+		if (descriptor >= fileTable.length)
 		{
-			if (fileTable[i] == null)	return i;
+			fileTable = Arrays.copyOf(fileTable,
+				Math.min(fileTable.length*2, UserKernel.maxOpenFiles));
 		}
-		
-		return -1;
+		usedDescriptors.set(descriptor);
+		return descriptor;
+	}
+	
+	/**
+	 * Fill a descriptor reserved by allocateDescriptor() with an open file.
+	 */
+	private void installDescriptor(int descriptor, OpenFile file)
+	{
+		fileTable[descriptor] = file;
+	}
+	
+	/**
+	 * Make a descriptor free again. The file it refers to, if any, must
+	 * already be closed.
+	 */
+	private void freeDescriptor(int descriptor)
+	{
+		fileTable[descriptor] = null;
+		usedDescriptors.clear(descriptor);
 	}
 	
 	/**
@@ -832,7 +1828,30 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallMmap = 10,
+	syscallPipe = 13,
+	syscallReadv = 14,
+	syscallWritev = 15,
+	syscallPread = 16,
+	syscallPwrite = 17,
+	syscallRingSetup = 18,
+	syscallRingEnter = 19,
+	syscallAread = 20,
+	syscallAwrite = 21,
+	syscallAioWait = 22,
+	syscallAioPoll = 23,
+	syscallWaitAny = 24,
+	syscallThreadCreate = 25,
+	syscallThreadJoin = 26,
+	syscallThreadExit = 27,
+	syscallFutexWait = 28,
+	syscallFutexWake = 29,
+	syscallShmget = 30,
+	syscallShmat = 31,
+	syscallShmdt = 32,
+	syscallSbrk = 33,
+	syscallExecio = 34;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -853,6 +1872,38 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  pipe(int *fds);</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+     *								</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+     *								</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  pread(int fd, char *buffer, int size, int pos);
+     *								</tt></td></tr>
+     * <tr><td>17</td><td><tt>int  pwrite(int fd, char *buffer, int size, int pos);
+     *								</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  ring_setup(struct ring *ring, int entries);
+     *								</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  ring_enter(int toSubmit);</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  aread(int fd, char *buffer, int size);
+     *								</tt></td></tr>
+     * <tr><td>21</td><td><tt>int  awrite(int fd, char *buffer, int size);
+     *								</tt></td></tr>
+     * <tr><td>22</td><td><tt>int  aio_wait(int id, int *result);</tt></td></tr>
+     * <tr><td>23</td><td><tt>int  aio_poll(int id, int *result);</tt></td></tr>
+     * <tr><td>24</td><td><tt>int  waitAny(int *status);</tt></td></tr>
+     * <tr><td>25</td><td><tt>int  thread_create(void (*func)(void *), void *arg);
+     *								</tt></td></tr>
+     * <tr><td>26</td><td><tt>int  thread_join(int tid, int *status);</tt></td></tr>
+     * <tr><td>27</td><td><tt>void thread_exit(int status);</tt></td></tr>
+     * <tr><td>28</td><td><tt>int  futex_wait(int *addr, int expected);</tt></td></tr>
+     * <tr><td>29</td><td><tt>int  futex_wake(int *addr, int count);</tt></td></tr>
+     * <tr><td>30</td><td><tt>int  shmget(int key, int size);</tt></td></tr>
+     * <tr><td>31</td><td><tt>void *shmat(int id, void *address);</tt></td></tr>
+     * <tr><td>32</td><td><tt>int  shmdt(void *address);</tt></td></tr>
+     * <tr><td>33</td><td><tt>void *sbrk(int increment);</tt></td></tr>
+     * <tr><td>34</td><td><tt>int  execio(char *name, int argc, char **argv,
+     *				   int fds[2]);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -863,6 +1914,33 @@ public class UserProcess {
      * @return	the value to be returned to the user.
      */
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	if (UserKernel.syscallStats == null)
+	    return dispatchSyscall(syscall, a0, a1, a2, a3);
+
+	int[] args = { a0, a1, a2, a3 };
+
+	// these may never return, so they are recorded before they run
+	if (syscall == syscallHalt || syscall == syscallExit ||
+	    syscall == syscallThreadExit)
+	    UserKernel.syscallStats.record(syscallProfile, PID, syscall, args,
+					   a0, 0);
+
+	long start = Machine.timer().getTime();
+	int result = dispatchSyscall(syscall, a0, a1, a2, a3);
+
+	if (syscall != syscallHalt && syscall != syscallExit &&
+	    syscall != syscallThreadExit)
+	    UserKernel.syscallStats.record(syscallProfile, PID, syscall, args,
+					   result,
+					   Machine.timer().getTime() - start);
+
+	return result;
+    }
+
+    /**
+     * Run the handler for a syscall. Called by <tt>handleSyscall()</tt>.
+     */
+    private int dispatchSyscall(int syscall, int a0, int a1, int a2, int a3) {
 	switch (syscall) {
 	case syscallHalt:
 		return handleHalt();
@@ -884,6 +1962,52 @@ public class UserProcess {
 		return handleClose(a0);
 	case syscallUnlink:
 		return handleUnlink(a0);
+	case syscallMmap:
+		return handleMmap(a0, a1);
+	case syscallPipe:
+		return handlePipe(a0);
+	case syscallReadv:
+		return handleReadv(a0, a1, a2);
+	case syscallWritev:
+		return handleWritev(a0, a1, a2);
+	case syscallPread:
+		return handlePread(a0, a1, a2, a3);
+	case syscallPwrite:
+		return handlePwrite(a0, a1, a2, a3);
+	case syscallRingSetup:
+		return handleRingSetup(a0, a1);
+	case syscallRingEnter:
+		return handleRingEnter(a0);
+	case syscallAread:
+		return handleAsyncTransfer(a0, a1, a2, false);
+	case syscallAwrite:
+		return handleAsyncTransfer(a0, a1, a2, true);
+	case syscallAioWait:
+		return handleAsyncCollect(a0, a1, true);
+	case syscallAioPoll:
+		return handleAsyncCollect(a0, a1, false);
+	case syscallWaitAny:
+		return handleWaitAny(a0);
+	case syscallThreadCreate:
+		return handleThreadCreate(a0, a1, a2);
+	case syscallThreadJoin:
+		return handleThreadJoin(a0, a1);
+	case syscallThreadExit:
+		return handleThreadExit(a0);
+	case syscallFutexWait:
+		return handleFutexWait(a0, a1);
+	case syscallFutexWake:
+		return handleFutexWake(a0, a1);
+	case syscallShmget:
+		return handleShmget(a0, a1);
+	case syscallShmat:
+		return handleShmat(a0, a1);
+	case syscallShmdt:
+		return handleShmdt(a0);
+	case syscallSbrk:
+		return handleSbrk(a0);
+	case syscallExecio:
+		return handleExecio(a0, a1, a2, a3);
 
 
 
@@ -905,6 +2029,10 @@ public class UserProcess {
     public void handleException(int cause) {
 	Processor processor = Machine.processor();
 
+	// another thread is exiting this process
+	if (mustLeave((UThread) KThread.currentThread()))
+	    exitThread(0);
+
 	switch (cause) {
 	case Processor.exceptionSyscall:
 	    int result = handleSyscall(processor.readRegister(Processor.regV0),
@@ -916,6 +2044,17 @@ public class UserProcess {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
+
+	case Processor.exceptionPageFault:
+	    // the heap and the stacks get memory as they are touched; any
+	    // other fault, such as one on a guard page, kills the process
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+	    if (vpn >= numPages || !allocatePage(vpn)) {
+		Lib.debug(dbgProcess, "\tbad page fault at page " + vpn);
+		terminate();
+	    }
+	    break;
 				       
 	default:
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
@@ -926,6 +2065,11 @@ public class UserProcess {
     /**
      * Record the number of references to files.
      * Take care of removing or releasing the files
+     *
+     * The records are spread over stripes by file name, each stripe with its
+     * own lock, so processes opening and closing unrelated files don't wait
+     * for each other, and removing a file only holds up its own stripe.
+     * Records that are no longer needed go back to their stripe's pool.
      */
     protected static class fileRefRecord
     {
@@ -938,11 +2082,16 @@ public class UserProcess {
     	 */
     	public static int reference(String fileName)
     	{
-    		fileRefRecord ref = updateReference(fileName);
-    		if (ref.delete)		return -1;
-    		ref.numRef ++;
-    		finishUpdate();
-    		return 1;
+    		Stripe stripe = updateReference(fileName);
+    		fileRefRecord ref = stripe.get(fileName);
+    		int status = -1;
+    		if (!ref.delete)
+    		{
+    			if (ref.numRef++ == 0)	openedName();
+    			status = 1;
+    		}
+    		finishUpdate(stripe);
+    		return status;
     	}
     	
     	/**
@@ -952,21 +2101,22 @@ public class UserProcess {
     	 */
     	public static int unreference(String fileName)
     	{
-    		fileRefRecord ref = updateReference(fileName);
+    		Stripe stripe = updateReference(fileName);
+    		fileRefRecord ref = stripe.get(fileName);
     		ref.numRef --;
     		int status = 1;
     		if (ref.numRef <= 0)
     		{
-    			if (ref.delete)		status = ref.delIfNecessary(ref, fileName)? 1 : -1;
-    			globalFileReferences.remove(fileName);
-    			//if (globalFileReferences.get(fileName) == null) System.out.print("sdfshdiufhasifhbius\n");
+    			if (ref.numRef == 0)	closedName();
+    			if (ref.delete)		status = delIfNecessary(fileName)? 1 : -1;
+    			stripe.retire(fileName);
     		}
-    		finishUpdate();
+    		finishUpdate(stripe);
     		return status;
     	}
     	
     	//Without lock, this version is called by unreference() only.
-    	private static boolean delIfNecessary(fileRefRecord ref, String fileName)
+    	private static boolean delIfNecessary(String fileName)
     	{
     		boolean status = ((UserKernel) Kernel.kernel).fileSystem.remove(fileName);
     		return status;
@@ -979,15 +2129,15 @@ public class UserProcess {
     	 */
     	public static boolean deleteIfNecessary(String fileName)
     	{	
-    		fileRefRecord ref = updateReference(fileName);
+    		Stripe stripe = updateReference(fileName);
+    		fileRefRecord ref = stripe.get(fileName);
     		boolean status = false;	//true if delete it
     		if (ref.numRef <= 0)	
     		{
-    			status = ((UserKernel) Kernel.kernel).fileSystem.remove(fileName);
-    			globalFileReferences.remove(fileName);
+    			status = delIfNecessary(fileName);
+    			stripe.retire(fileName);
     		}
-    		//if(status) System.out.print("816\n");
-    		finishUpdate();
+    		finishUpdate(stripe);
     		return status;
     	}
     	
@@ -996,50 +2146,137 @@ public class UserProcess {
     	 */
 		public static void markAsDelete(String fileName)
 		{
-			fileRefRecord ref = updateReference(fileName);
-			ref.delete = true;
-			finishUpdate();
+			Stripe stripe = updateReference(fileName);
+			stripe.get(fileName).delete = true;
+			finishUpdate(stripe);
+		}
+		
+		/**
+		 * Return a one-line summary of the open file names, for debugging.
+		 */
+		public static String getStatistics()
+		{
+			return "open names " + numOpenNames + ", peak " + peakOpenNames;
 		}
 		
 		/**
 		 * Called when beginning to update the reference table.
-		 * acquire() the fileRefLock.
-		 * return the corresponding fileRefRecord
+		 * acquire() the lock of the stripe holding fileName.
+		 * return the stripe
 		 */
-    	private static fileRefRecord updateReference(String fileName)
+    	private static Stripe updateReference(String fileName)
     	{
-    		fileRefLock.acquire();
-    		fileRefRecord ref = globalFileReferences.get(fileName);
-    		if (ref == null)
-    		{
-    			ref = new fileRefRecord();
-    			globalFileReferences.put(fileName, ref);
-    		}
-    		return ref;
+    		Stripe stripe = stripes[(fileName.hashCode() & 0x7FFFFFFF) % numStripes];
+    		stripe.lock.acquire();
+    		return stripe;
     	}
     	
+    	private static void finishUpdate(Stripe stripe)
+    	{
+    		stripe.lock.release();
+    	}
+    	
+    	//Callers in different stripes may run at once, and the timer can
+    	//switch threads at any point with interrupts enabled, so update the
+    	//counters with interrupts disabled
+    	private static void openedName()
+    	{
+    		boolean intStatus = Machine.interrupt().disable();
+    		numOpenNames ++;
+    		peakOpenNames = Math.max(peakOpenNames, numOpenNames);
+    		Machine.interrupt().restore(intStatus);
+    	}
+    	
+    	private static void closedName()
+    	{
+    		boolean intStatus = Machine.interrupt().disable();
+    		numOpenNames --;
+    		Machine.interrupt().restore(intStatus);
+    	}
     	
-    	private static void finishUpdate()
+    	/**
+    	 * The records of the file names that hash to one stripe.
+    	 */
+    	private static class Stripe
     	{
-    		fileRefLock.release();
+    		/**
+    		 * Return the record of a file name, taking one from the pool if
+    		 * the name has none. The caller must hold the lock.
+    		 */
+    		fileRefRecord get(String fileName)
+    		{
+    			fileRefRecord ref = records.get(fileName);
+    			if (ref == null)
+    			{
+    				ref = pool.isEmpty() ? new fileRefRecord() : pool.removeFirst();
+    				records.put(fileName, ref);
+    			}
+    			return ref;
+    		}
+    		
+    		/**
+    		 * Remove the record of a file name, keeping it for reuse.
+    		 * The caller must hold the lock.
+    		 */
+    		void retire(String fileName)
+    		{
+    			fileRefRecord ref = records.remove(fileName);
+    			if (ref != null && pool.size() < maxPooledRecords)
+    			{
+    				ref.numRef = 0;
+    				ref.delete = false;
+    				pool.add(ref);
+    			}
+    		}
+    		
+    		HashMap<String, fileRefRecord> records = new HashMap<String, fileRefRecord>();
+    		LinkedList<fileRefRecord> pool = new LinkedList<fileRefRecord>();
+    		Lock lock = new Lock();
     	}
     	
-    	private static HashMap<String, fileRefRecord> globalFileReferences = new HashMap<String, fileRefRecord>();
-    	private static Lock fileRefLock = new Lock();
+    	private static final int numStripes = 16;
+    	private static final int maxPooledRecords = 16;
+    	private static Stripe[] stripes = new Stripe[numStripes];
+    	static
+    	{
+    		for (int i = 0; i < numStripes; i++)	stripes[i] = new Stripe();
+    	}
+    	private static int numOpenNames = 0, peakOpenNames = 0;
 	}
 	/**
 	 * lock for exiting processes and begin a new process
 	 */
 	private static Lock haltingLock = new Lock();
-	/** parent and children of this process. */
+	/** parent and children of this process, by PID. */
 	private UserProcess parent;
-	private HashSet<UserProcess> children = new HashSet<UserProcess>();
-	private boolean ifExited = false;
-	private Integer returnVal = null;
-
-	/** monitor used to implement join */
-	private static Lock joinLock = new Lock();
-	private static Condition joinCV;
+	private HashMap<Integer, UserProcess> children = new HashMap<Integer, UserProcess>();
+	/** PIDs of the exited children that have not been joined, oldest first;
+	 *  their exit status is kept by the process table. */
+	private LinkedHashSet<Integer> exitedChildren = new LinkedHashSet<Integer>();
+	private boolean exiting = false;
+
+	/** monitor used to implement join, signalled when a child exits */
+	private Lock childLock = new Lock();
+	private Condition childExitedCV = new Condition(childLock);
+
+	/** threads created by thread_create(), by thread ID - 1; a thread stays
+	 *  here after it exits until it is joined. */
+	private UThread[] threads = new UThread[UserKernel.maxThreads];
+	private boolean[] threadExited = new boolean[UserKernel.maxThreads];
+	private int[] threadStatus = new int[UserKernel.maxThreads];
+	/** number of running threads, including the one that runs main() */
+	private int numThreads = 1;
+	/** the thread that called exit(), or null */
+	private KThread exitingThread = null;
+	private Lock threadLock = new Lock();
+	private Condition threadExitedCV = new Condition(threadLock);
+	/** wakers for the threads blocked in sleepInSyscall(), run by exit() */
+	private LinkedList<Runnable> sleepers = new LinkedList<Runnable>();
+
+	/** the shared memory segments this process holds, by ID */
+	private HashMap<Integer, SharedMemory.Segment> sharedSegments = new HashMap<Integer, SharedMemory.Segment>();
+	/** the segments attached to the address space, by first page */
+	private TreeMap<Integer, SharedMemory.Segment> attachedSegments = new TreeMap<Integer, SharedMemory.Segment>();
 
     /** The program being run by this process. */
     protected Coff coff;
@@ -1049,30 +2286,49 @@ public class UserProcess {
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
-    /** The number of pages in the program's stack. */
-    protected final int stackPages = 8;
-    
     private int initialPC, initialSP;
+    /** The first page of the heap, and the current end of the heap. */
+    private int heapBase, brk;
+    /** The lowest page the stack may grow down to, and the argument page
+     *  above the stack. */
+    private int stackBase, argumentVPN;
+    /** The first page of the stacks of threads created by thread_create(). */
+    private int threadStackBase;
+    /** The first page shared memory can be attached at. */
+    private int attachBase;
+    private static final int maxAttachedPages = 0x10000;
     private int argc, argv;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     
-    //Used to store the opened files
-    protected OpenFile[] fileTable = new OpenFile[16];
+    //Used to store the opened files; grows up to UserKernel.maxOpenFiles
+    protected OpenFile[] fileTable = new OpenFile[initialNumFiles];
+    /** The descriptors in use, including those being opened */
+    private BitSet usedDescriptors = new BitSet();
     private static final int maxLengthForString = 256;
-    private static final int maxNumFiles = 16;
+    private static final int initialNumFiles = 16;
+    private static final int maxIOVectors = 16;
+    private static final int maxRingEntries = 64;
+    private static final int maxAsyncRequests = 16;
+    
+    /** The syscall statistics of this process */
+    private SyscallStats.Profile syscallProfile = new SyscallStats.Profile();
+    
+    /** The asynchronous reads and writes of this process, or null */
+    private AsyncIO.Completions asyncRequests = null;
+    
+    /** The syscall rings registered by ring_setup(), or null */
+    private SyscallRing syscallRing = null;
     
     private final int PID;
-    public static int maxPID = 0;
     
-    private static Lock PIDLock = new Lock();
     private static Lock virtualMemoryLock = new Lock();
     
     //Used to indicate the translation mode
-    private static final int writeMode = 1;
-    private static final int readMode = -1;
-	private static final int defaultMode = 0;
+    protected static final int writeMode = 1;
+    protected static final int readMode = -1;
+	protected static final int defaultMode = 0;
 	
 	// total number of running processes
 	private static int numProcesses = 0;
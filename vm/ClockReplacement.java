@@ -0,0 +1,40 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The clock (second chance) page replacement policy. Pages whose used bit is
+ * set are skipped and have their used bit cleared.
+ */
+public class ClockReplacement extends PageReplacement {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockReplacement() {
+	super();
+    }
+
+    public int selectVictim(VMProcess owner) {
+	// the first lap clears the used bits, so a candidate is found in two
+	for (int i=0; i<2*coreMap.length; i++) {
+	    int ppn = clockHand;
+	    clockHand = (clockHand+1) % coreMap.length;
+
+	    VMKernel.Frame frame = coreMap[ppn];
+	    if (!isCandidate(frame, owner))
+		continue;
+
+	    if (frame.process.testAndClearUsed(frame.vpn))
+		continue;
+
+	    return ppn;
+	}
+
+	return -1;
+    }
+
+    private int clockHand = 0;
+}
@@ -0,0 +1,214 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An in-memory store of compressed evicted pages, kept in front of the swap
+ * file. A page whose bytes are all the same, such as a zero-filled stack or
+ * BSS page, is stored as just that byte. Other pages are compressed with
+ * <tt>Deflater</tt> at its fastest level, and kept if they shrink enough.
+ * When the compressed pages exceed the capacity of the store, the coldest
+ * are spilled to the swap file by their owners: those whose last recorded use
+ * is oldest, or, among pages with the same time of use, those stored first.
+ *
+ * <p>
+ * All methods must be called with the paging lock held.
+ */
+public class CompressedPageStore {
+    /**
+     * Allocate a new compressed page store.
+     *
+     * @param	capacity	the maximum number of bytes of compressed data
+     *				to keep in memory.
+     */
+    public CompressedPageStore(int capacity) {
+	this.capacity = capacity;
+    }
+
+    /**
+     * Try to store a copy of the specified physical page for a virtual page
+     * of a process. Fails if the page does not compress well, in which case
+     * the caller must write it to swap instead.
+     *
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page holding its contents.
+     * @param	lastUse	the time the page was last used, in ticks.
+     * @return	<tt>true</tt> if the page was stored.
+     */
+    public boolean store(VMProcess process, int vpn, int ppn, long lastUse) {
+	byte[] memory = Machine.processor().getMemory();
+	int offset = ppn*pageSize;
+
+	Page page = new Page(process, vpn);
+	page.lastUse = lastUse;
+
+	if (isSameByte(memory, offset)) {
+	    page.fill = memory[offset];
+	    numSameByte++;
+	}
+	else {
+	    deflater.reset();
+	    deflater.setInput(memory, offset, pageSize);
+	    deflater.finish();
+	    int length = deflater.deflate(buffer, 0, maxCompressedSize+1);
+	    if (!deflater.finished() || length > maxCompressedSize) {
+		numRejected++;
+		return false;
+	    }
+
+	    page.data = new byte[length];
+	    System.arraycopy(buffer, 0, page.data, 0, length);
+	    numBytes += length;
+	}
+
+	Page old = pages.put(page, page);
+	if (old != null && old.data != null)
+	    numBytes -= old.data.length;
+	numStored++;
+
+	spillToCapacity();
+	return true;
+    }
+
+    /**
+     * Move a stored page into the specified physical page, removing it from
+     * the store.
+     *
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page to fill.
+     * @return	<tt>true</tt> if the page was in the store.
+     */
+    public boolean load(VMProcess process, int vpn, int ppn) {
+	Page page = pages.remove(new Page(process, vpn));
+	if (page == null)
+	    return false;
+
+	byte[] memory = Machine.processor().getMemory();
+	decompress(page, memory, ppn*pageSize);
+	if (page.data != null)
+	    numBytes -= page.data.length;
+
+	numLoaded++;
+	return true;
+    }
+
+    /**
+     * Discard a stored page of a process that is exiting.
+     *
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page.
+     */
+    public void discard(VMProcess process, int vpn) {
+	Page page = pages.remove(new Page(process, vpn));
+	if (page != null && page.data != null)
+	    numBytes -= page.data.length;
+    }
+
+    /**
+     * Return a one-line summary of the activity of this store.
+     */
+    public String getStatistics() {
+	return "stored " + numStored + " (" + numSameByte + " same-byte), "
+	    + "rejected " + numRejected + ", loaded " + numLoaded
+	    + ", spilled " + numSpilled + ", pool bytes " + numBytes;
+    }
+
+    private void spillToCapacity() {
+	while (numBytes > capacity) {
+	    // same-byte pages take no space, so only compressed ones are spilled
+	    Page page = null;
+	    for (Page p : pages.values()) {
+		if (p.data != null && (page == null || p.lastUse < page.lastUse))
+		    page = p;
+	    }
+
+	    pages.remove(page);
+	    numBytes -= page.data.length;
+
+	    byte[] contents = new byte[pageSize];
+	    decompress(page, contents, 0);
+	    page.process.spill(page.vpn, contents);
+	    numSpilled++;
+	}
+    }
+
+    private void decompress(Page page, byte[] dst, int offset) {
+	if (page.data == null) {
+	    Arrays.fill(dst, offset, offset+pageSize, page.fill);
+	    return;
+	}
+
+	inflater.reset();
+	inflater.setInput(page.data);
+	try {
+	    Lib.assertTrue(inflater.inflate(dst, offset, pageSize) == pageSize);
+	}
+	catch (DataFormatException e) {
+	    Lib.assertNotReached("corrupt compressed page");
+	}
+    }
+
+    private static boolean isSameByte(byte[] memory, int offset) {
+	byte fill = memory[offset];
+	for (int i=1; i<pageSize; i++) {
+	    if (memory[offset+i] != fill)
+		return false;
+	}
+	return true;
+    }
+
+    private static class Page {
+	Page(VMProcess process, int vpn) {
+	    this.process = process;
+	    this.vpn = vpn;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof Page))
+		return false;
+
+	    Page page = (Page) o;
+	    return page.process == process && page.vpn == vpn;
+	}
+
+	public int hashCode() {
+	    return System.identityHashCode(process)*31 + vpn;
+	}
+
+	VMProcess process;
+	int vpn;
+	/** The compressed contents, or <tt>null</tt> for a same-byte page. */
+	byte[] data = null;
+	/** The value of every byte of a same-byte page. */
+	byte fill = 0;
+	/** The time the page was last used, in ticks. */
+	long lastUse = 0;
+    }
+
+    private int capacity;
+    private int numBytes = 0;
+    private int numStored = 0, numSameByte = 0, numRejected = 0;
+    private int numLoaded = 0, numSpilled = 0;
+
+    /** The stored pages, in the order they were stored. */
+    private LinkedHashMap<Page, Page> pages = new LinkedHashMap<Page, Page>();
+
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+    private byte[] buffer = new byte[maxCompressedSize+1];
+
+    private static final int pageSize = Processor.pageSize;
+    /** Pages that compress to more than this are left to the swap file. */
+    private static final int maxCompressedSize = pageSize/2;
+}
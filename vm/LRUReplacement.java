@@ -0,0 +1,43 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * An approximate least recently used page replacement policy. The time of
+ * last use of each page is sampled at timer interrupts, and the page with
+ * the oldest time of use is evicted.
+ */
+public class LRUReplacement extends PageReplacement {
+    /**
+     * Allocate a new LRU policy.
+     */
+    public LRUReplacement() {
+	super();
+    }
+
+    public int selectVictim(VMProcess owner) {
+	int victim = -1;
+
+	for (int ppn=0; ppn<coreMap.length; ppn++) {
+	    VMKernel.Frame frame = coreMap[ppn];
+	    if (!isCandidate(frame, owner))
+		continue;
+
+	    // account for uses since the last timer interrupt
+	    if (frame.process.testAndClearUsed(frame.vpn))
+		frame.lastUseTime = Machine.timer().getTime();
+
+	    if (victim == -1 || frame.lastUseTime < coreMap[victim].lastUseTime)
+		victim = ppn;
+	}
+
+	return victim;
+    }
+
+    public boolean usesSampling() {
+	return true;
+    }
+}
@@ -0,0 +1,97 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A page replacement policy, used by <tt>VMKernel</tt> to choose which
+ * physical page to evict when no page is free. The policy is selected by the
+ * <tt>nachos.conf</tt> key <tt>VMKernel.replacement</tt>, which is one of
+ * <tt>clock</tt>, <tt>wsclock</tt> or <tt>lru</tt>, or the name of a
+ * subclass of this class.
+ *
+ * <p>
+ * All methods except <tt>shouldSuspend()</tt> are called with the paging lock
+ * held.
+ */
+public abstract class PageReplacement {
+    /**
+     * Allocate a new page replacement policy.
+     */
+    public PageReplacement() {
+    }
+
+    /**
+     * Construct the page replacement policy with the specified name.
+     *
+     * @param	name	<tt>clock</tt>, <tt>wsclock</tt>, <tt>lru</tt>, or a
+     *			class name.
+     * @return	the new policy.
+     */
+    public static PageReplacement forName(String name) {
+	if (name.equals("clock"))
+	    return new ClockReplacement();
+	else if (name.equals("wsclock"))
+	    return new WSClockReplacement();
+	else if (name.equals("lru"))
+	    return new LRUReplacement();
+	else
+	    return (PageReplacement) Lib.constructObject(name);
+    }
+
+    /**
+     * Give this policy the core map it chooses victims from. Called once by
+     * the kernel before any other method.
+     *
+     * @param	coreMap	the core map, indexed by physical page number.
+     */
+    public void setCoreMap(VMKernel.Frame[] coreMap) {
+	this.coreMap = coreMap;
+    }
+
+    /**
+     * Choose a mapped physical page to evict.
+     *
+     * @param	owner	if not <tt>null</tt>, only pages of this process may be
+     *			chosen.
+     * @return	the physical page to evict, or -1 if no page may be chosen:
+     *		every page is free, on the standby list, or not owned by a
+     *		process, as shared memory pages are.
+     */
+    public abstract int selectVictim(VMProcess owner);
+
+    /**
+     * Test whether this policy needs the used bits of the running process to
+     * be sampled at every timer interrupt. If so, the kernel clears the used
+     * bits and records the time of use in each frame.
+     *
+     * @return	<tt>true</tt> if this policy uses the sampled times of use.
+     */
+    public boolean usesSampling() {
+	return false;
+    }
+
+    /**
+     * Test whether the specified process should be suspended, rather than be
+     * given another physical page, to prevent thrashing.
+     *
+     * @param	process	a process about to fault in a page.
+     * @return	<tt>true</tt> if the process should wait before faulting.
+     */
+    public boolean shouldSuspend(VMProcess process) {
+	return false;
+    }
+
+    /**
+     * Test whether a frame may be chosen for a victim.
+     */
+    protected boolean isCandidate(VMKernel.Frame frame, VMProcess owner) {
+	return frame.process != null && !frame.standby && !frame.kept &&
+	    (owner == null || frame.process == owner);
+    }
+
+    /** The core map, indexed by physical page number. */
+    protected VMKernel.Frame[] coreMap;
+}
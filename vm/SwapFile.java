@@ -0,0 +1,154 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.BitSet;
+
+/**
+ * A file on the kernel file system that holds evicted pages. The file is
+ * divided into page-sized slots; freed slots are reused before the file is
+ * grown. Adjacent slots can be read with a single file access.
+ */
+public class SwapFile {
+    /**
+     * Create a new, empty swap file with the specified name.
+     *
+     * @param	name	the name of the swap file.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "unable to create swap file " + name);
+    }
+
+    /**
+     * Allocate a free slot.
+     *
+     * @return	the number of the allocated slot.
+     */
+    public int allocate() {
+	return allocate(-1);
+    }
+
+    /**
+     * Allocate a free slot, preferring the specified one. Callers pass the
+     * slot following that of the previous virtual page, so that runs of
+     * pages end up in runs of slots that can be read together.
+     *
+     * @param	preferred	the preferred slot, or -1.
+     * @return	the number of the allocated slot.
+     */
+    public int allocate(int preferred) {
+	int slot;
+	if (preferred >= 0 && !usedSlots.get(preferred))
+	    slot = preferred;
+	else
+	    slot = usedSlots.nextClearBit(0);
+
+	usedSlots.set(slot);
+	numSlots = Math.max(numSlots, slot+1);
+	return slot;
+    }
+
+    /**
+     * Release a slot allocated by <tt>allocate()</tt>.
+     *
+     * @param	slot	the slot to release.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(slot >= 0 && slot < numSlots && usedSlots.get(slot));
+
+	usedSlots.clear(slot);
+    }
+
+    /**
+     * Copy the specified physical page into a slot.
+     *
+     * @param	slot	the slot to write.
+     * @param	ppn	the physical page to copy.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    public boolean write(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	return file.write(slot*pageSize, memory, ppn*pageSize, pageSize)
+	    == pageSize;
+    }
+
+    /**
+     * Copy the contents of a page held in kernel memory into a slot.
+     *
+     * @param	slot	the slot to write.
+     * @param	contents	a page-sized array holding the page.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    public boolean write(int slot, byte[] contents) {
+	return file.write(slot*pageSize, contents, 0, pageSize) == pageSize;
+    }
+
+    /**
+     * Copy a slot into the specified physical page.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to fill.
+     * @return	<tt>true</tt> if the whole page was read.
+     */
+    public boolean read(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	return file.read(slot*pageSize, memory, ppn*pageSize, pageSize)
+	    == pageSize;
+    }
+
+    /**
+     * Copy a run of adjacent slots into the specified physical pages, using
+     * a single file access.
+     *
+     * @param	slot	the first slot to read.
+     * @param	ppns	the physical page to fill from each slot.
+     * @return	<tt>true</tt> if every page was read.
+     */
+    public boolean read(int slot, int[] ppns) {
+	if (ppns.length == 1)
+	    return read(slot, ppns[0]);
+
+	byte[] buf = new byte[ppns.length*pageSize];
+	if (file.read(slot*pageSize, buf, 0, buf.length) != buf.length)
+	    return false;
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<ppns.length; i++)
+	    System.arraycopy(buf, i*pageSize, memory, ppns[i]*pageSize,
+			     pageSize);
+
+	return true;
+    }
+
+    /**
+     * Return the number of slots currently in use.
+     *
+     * @return	the number of allocated slots.
+     */
+    public int getNumUsedSlots() {
+	return usedSlots.cardinality();
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+    private int numSlots = 0;
+    private BitSet usedSlots = new BitSet();
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,236 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * A kernel-side shadow of the TLB, tagged with address space identifiers
+ * (ASIDs). The hardware TLB has no ASID field, so it can only hold the
+ * translations of one address space at a time. Instead of invalidating it on
+ * every context switch, the TLB is left alone until a thread of a different
+ * address space runs; the previous owner's entries, including their used and
+ * dirty bits, are then saved to its shadow and the new owner's shadow is
+ * loaded.
+ *
+ * <p>
+ * The used and dirty bits recorded in the TLB are only merged into the page
+ * table when an entry is replaced, when the page it maps is evicted, or when
+ * the page replacement algorithm asks for them.
+ *
+ * <p>
+ * All methods must be called with interrupts disabled or with the paging
+ * lock held; none of them block.
+ */
+public class TLBShadow {
+    /**
+     * Allocate a new TLB shadow for the processor's TLB.
+     */
+    public TLBShadow() {
+	tlbSize = Machine.processor().getTLBSize();
+    }
+
+    /**
+     * Assign an ASID to a process.
+     *
+     * @param	process	the process.
+     * @return	the process's ASID.
+     */
+    public int allocateASID(VMProcess process) {
+	int asid;
+	if (!freeASIDs.isEmpty()) {
+	    asid = freeASIDs.removeFirst();
+	}
+	else {
+	    asid = owners.size();
+	    owners.add(null);
+	    shadows.add(new TranslationEntry[tlbSize]);
+	}
+
+	owners.set(asid, process);
+	TranslationEntry[] shadow = shadows.get(asid);
+	for (int i=0; i<tlbSize; i++)
+	    shadow[i] = new TranslationEntry();
+
+	return asid;
+    }
+
+    /**
+     * Release an ASID. Discards its translations, including any held by the
+     * hardware TLB.
+     *
+     * @param	asid	the ASID to release.
+     */
+    public void freeASID(int asid) {
+	if (asid == currentASID) {
+	    for (int i=0; i<tlbSize; i++)
+		Machine.processor().writeTLBEntry(i, new TranslationEntry());
+	    currentASID = -1;
+	}
+
+	owners.set(asid, null);
+	freeASIDs.add(asid);
+    }
+
+    /**
+     * Make the hardware TLB hold the translations of the specified address
+     * space. Does nothing if it already does.
+     *
+     * @param	asid	the ASID of the address space about to run.
+     */
+    public void switchTo(int asid) {
+	if (asid == currentASID)
+	    return;
+
+	Processor processor = Machine.processor();
+
+	TranslationEntry[] saved =
+	    (currentASID == -1) ? null : shadows.get(currentASID);
+	TranslationEntry[] loaded = shadows.get(asid);
+
+	for (int i=0; i<tlbSize; i++) {
+	    if (saved != null)
+		saved[i] = processor.readTLBEntry(i);
+	    processor.writeTLBEntry(i, loaded[i]);
+	}
+
+	if (currentASID != -1)
+	    numSwitches++;
+	currentASID = asid;
+    }
+
+    /**
+     * Install a translation for the address space currently in the TLB.
+     * Replaces an invalid entry if there is one, or else the next entry in
+     * round-robin order, whose used and dirty bits are first merged into the
+     * page table.
+     *
+     * @param	asid	the ASID of the translation; must be the current one.
+     * @param	entry	the page table entry to install.
+     */
+    public void refill(int asid, TranslationEntry entry) {
+	Lib.assertTrue(asid == currentASID);
+
+	Processor processor = Machine.processor();
+
+	int victim = -1;
+	for (int i=0; i<tlbSize; i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		victim = i;
+		break;
+	    }
+	}
+	if (victim == -1) {
+	    victim = nextVictim;
+	    nextVictim = (nextVictim+1) % tlbSize;
+	    merge(asid, processor.readTLBEntry(victim));
+	}
+
+	processor.writeTLBEntry(victim, entry);
+    }
+
+    /**
+     * Remove the translation for a virtual page, merging its used and dirty
+     * bits into the page table. Called before the page is evicted.
+     *
+     * @param	asid	the ASID of the address space.
+     * @param	vpn	the virtual page.
+     */
+    public void invalidate(int asid, int vpn) {
+	for (int i=0; i<tlbSize; i++) {
+	    TranslationEntry entry = read(asid, i);
+	    if (entry.valid && entry.vpn == vpn) {
+		merge(asid, entry);
+		entry.valid = false;
+		write(asid, i, entry);
+	    }
+	}
+    }
+
+    /**
+     * Merge the used and dirty bits of the translation for a virtual page, if
+     * any, into the page table, and clear them in the translation, so that
+     * it only records accesses made from now on.
+     *
+     * @param	asid	the ASID of the address space.
+     * @param	vpn	the virtual page.
+     */
+    public void sync(int asid, int vpn) {
+	for (int i=0; i<tlbSize; i++) {
+	    TranslationEntry entry = read(asid, i);
+	    if (entry.valid && entry.vpn == vpn) {
+		merge(asid, entry);
+		entry.used = false;
+		entry.dirty = false;
+		write(asid, i, entry);
+	    }
+	}
+    }
+
+    /**
+     * Merge the used and dirty bits of every translation of an address space
+     * into the page table, and clear them in the translations.
+     *
+     * @param	asid	the ASID of the address space.
+     */
+    public void syncAll(int asid) {
+	for (int i=0; i<tlbSize; i++) {
+	    TranslationEntry entry = read(asid, i);
+	    if (entry.valid && (entry.used || entry.dirty)) {
+		merge(asid, entry);
+		entry.used = false;
+		entry.dirty = false;
+		write(asid, i, entry);
+	    }
+	}
+    }
+
+    /**
+     * Return the number of times the TLB changed address spaces.
+     *
+     * @return	the number of TLB reloads.
+     */
+    public int getNumSwitches() {
+	return numSwitches;
+    }
+
+    private TranslationEntry read(int asid, int number) {
+	if (asid == currentASID)
+	    return Machine.processor().readTLBEntry(number);
+
+	return new TranslationEntry(shadows.get(asid)[number]);
+    }
+
+    private void write(int asid, int number, TranslationEntry entry) {
+	if (asid == currentASID)
+	    Machine.processor().writeTLBEntry(number, entry);
+	else
+	    shadows.get(asid)[number] = new TranslationEntry(entry);
+    }
+
+    private void merge(int asid, TranslationEntry tlbEntry) {
+	VMProcess process = owners.get(asid);
+	if (!tlbEntry.valid || process == null)
+	    return;
+
+	TranslationEntry entry = process.getEntry(tlbEntry.vpn);
+	if (entry != null && entry.valid && entry.ppn == tlbEntry.ppn) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+    }
+
+    private int tlbSize;
+    private int currentASID = -1;
+    private int nextVictim = 0;
+    private int numSwitches = 0;
+
+    private ArrayList<VMProcess> owners = new ArrayList<VMProcess>();
+    private ArrayList<TranslationEntry[]> shadows =
+	new ArrayList<TranslationEntry[]>();
+    private LinkedList<Integer> freeASIDs = new LinkedList<Integer>();
+}
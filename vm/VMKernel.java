@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -17,15 +19,53 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. Creates the core map, the TLB shadow, the page
+     * replacement policy and the swap file, and the compressed page store if
+     * <tt>VMKernel.compressedPoolSize</tt> gives it a size in bytes.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	pagingLock = new Lock();
+
+	tlb = new TLBShadow();
+
+	coreMap = new Frame[Machine.processor().getNumPhysPages()];
+	for (int ppn=0; ppn<coreMap.length; ppn++)
+	    coreMap[ppn] = new Frame();
+
+	replacement = PageReplacement.forName(
+	    Config.getString("VMKernel.replacement", "clock"));
+	replacement.setCoreMap(coreMap);
+
+	residentLimit = Config.getInteger("VMKernel.residentLimit", 0);
+	suspendTicks = Config.getInteger("VMKernel.suspendTicks",
+					 defaultSuspendTicks);
+
+	if (replacement.usesSampling()) {
+	    Machine.timer().setInterruptHandler(new Runnable() {
+		    public void run() {
+			sampleWorkingSet();
+			alarm.timerInterrupt();
+		    }
+		});
+	}
+
+	swapFile = new SwapFile(Config.getString("VMKernel.swapFile",
+						 defaultSwapFileName));
+
+	int compressedBytes = Config.getInteger("VMKernel.compressedPoolSize",
+						defaultCompressedPoolSize);
+	if (compressedBytes > 0)
+	    pageStore = new CompressedPageStore(compressedBytes);
+
+	pageInCluster = Math.max(1, Config.getInteger("VMKernel.pageInCluster",
+						      defaultPageInCluster));
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,14 +76,286 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	Lib.debug(dbgVM, "swapping: page-ins " + numPageIns
+		  + ", page-outs " + numPageOuts
+		  + ", swap slots in use " + swapFile.getNumUsedSlots()
+		  + ", TLB reloads " + tlb.getNumSwitches()
+		  + ", failed mapped write-backs " + numWriteBackFailures);
+	Lib.debug(dbgVM, "prefetch: pages read ahead " + numPrefetched
+		  + ", used " + numPrefetchHits);
+	Lib.debug(dbgVM, "load control: suspensions " + numSuspensions);
+	if (pageStore != null)
+	    Lib.debug(dbgVM, "compressed pages: " + pageStore.getStatistics());
+
+	swapFile.close();
+
 	super.terminate();
     }
 
+    /**
+     * Wait, if the page replacement policy asks for it, until the specified
+     * process can be given another physical page without thrashing. The
+     * process is suspended for <tt>VMKernel.suspendTicks</tt> at a time, at
+     * most <tt>maxSuspensions</tt> times in a row, so that it can't starve.
+     *
+     * @param	process	a process about to fault in a page.
+     */
+    void admit(VMProcess process) {
+	for (int i=0; i<maxSuspensions; i++) {
+	    if (!replacement.shouldSuspend(process))
+		return;
+
+	    Lib.debug(dbgVM, "\tsuspending process to prevent thrashing");
+	    numSuspensions++;
+
+	    process.setSuspended(true);
+	    ThreadedKernel.alarm.waitUntil(suspendTicks);
+	    process.setSuspended(false);
+	}
+    }
+
+    /**
+     * Allocate a physical page for the specified virtual page of a process.
+     * A process at its resident limit replaces one of its own pages.
+     * Otherwise, takes a free page if there is one, or else discards the
+     * oldest prefetched page on the standby list, or else evicts a page. The
+     * caller must hold <tt>pagingLock</tt>, and is responsible for filling
+     * the page.
+     *
+     * @param	process	the process that will own the page.
+     * @param	vpn	the virtual page that will be mapped to the page.
+     * @return	the allocated physical page, or -1 if every page is held by
+     *		shared memory or the kernel, or can't be written back.
+     */
+    int allocateFrame(VMProcess process, int vpn) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	int ppn = -1;
+	if (residentLimit > 0 && process.getResidentPages() >= residentLimit)
+	    ppn = evictVictim(process);
+	if (ppn == -1)
+	    ppn = getFreePage();
+	if (ppn == -1)
+	    ppn = reclaimStandbyFrame();
+	if (ppn == -1)
+	    ppn = evictVictim(null);
+	if (ppn == -1)
+	    return -1;
+
+	coreMap[ppn].process = process;
+	coreMap[ppn].vpn = vpn;
+	// the page is about to be used; forget when its last owner used it
+	coreMap[ppn].lastUseTime = Machine.timer().getTime();
+
+	return ppn;
+    }
+
+    /**
+     * Choose a victim with the page replacement policy and evict it. A dirty
+     * page of a mapped file that can't be written back stays resident, and
+     * another victim is chosen instead.
+     *
+     * @param	owner	if not <tt>null</tt>, only pages of this process may be
+     *			evicted.
+     * @return	the evicted physical page, or -1 if no page could be
+     *		evicted.
+     */
+    private int evictVictim(VMProcess owner) {
+	LinkedList<Integer> kept = new LinkedList<Integer>();
+
+	int ppn;
+	while ((ppn = replacement.selectVictim(owner)) != -1) {
+	    Frame victim = coreMap[ppn];
+	    if (victim.process.evict(victim.vpn))
+		break;
+
+	    numWriteBackFailures++;
+	    victim.kept = true;
+	    kept.add(ppn);
+	}
+
+	for (int i : kept)
+	    coreMap[i].kept = false;
+
+	return ppn;
+    }
+
+    /**
+     * Allocate a physical page to prefetch the specified virtual page into.
+     * A mapped page is only evicted for this if it is clean, so prefetching
+     * never writes to swap. The page is placed on the standby list until it
+     * is mapped with <tt>mapStandbyFrame()</tt>. The caller must hold
+     * <tt>pagingLock</tt>.
+     *
+     * @param	process	the process that will own the page.
+     * @param	vpn	the virtual page that will be read into the page.
+     * @return	the allocated physical page, or -1 if none is available.
+     */
+    int allocateStandbyFrame(VMProcess process, int vpn) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	int ppn = getFreePage();
+	if (ppn == -1)
+	    ppn = reclaimStandbyFrame();
+	if (ppn == -1) {
+	    ppn = replacement.selectVictim(null);
+	    if (ppn == -1)
+		return -1;
+
+	    Frame victim = coreMap[ppn];
+	    if (victim.process.isDirty(victim.vpn))
+		return -1;
+	    victim.process.evict(victim.vpn);
+	}
+
+	coreMap[ppn].process = process;
+	coreMap[ppn].vpn = vpn;
+	coreMap[ppn].standby = true;
+	standbyFrames.add(ppn);
+	numPrefetched++;
+
+	return ppn;
+    }
+
+    /**
+     * Take a prefetched page off the standby list because it is about to be
+     * mapped. The caller must hold <tt>pagingLock</tt>.
+     *
+     * @param	ppn	the physical page.
+     */
+    void mapStandbyFrame(int ppn) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+	Lib.assertTrue(coreMap[ppn].standby);
+
+	coreMap[ppn].standby = false;
+	standbyFrames.remove((Integer) ppn);
+	numPrefetchHits++;
+    }
+
+    /**
+     * Discard the oldest prefetched page on the standby list, telling its
+     * owner that it is gone.
+     *
+     * @return	the reclaimed physical page, or -1 if the list is empty.
+     */
+    private int reclaimStandbyFrame() {
+	if (standbyFrames.isEmpty())
+	    return -1;
+
+	int ppn = standbyFrames.removeFirst();
+	Frame frame = coreMap[ppn];
+	frame.process.discardStandby(frame.vpn);
+	frame.standby = false;
+
+	return ppn;
+    }
+
+    /**
+     * Release a physical page allocated by <tt>allocateFrame()</tt>. The
+     * caller must hold <tt>pagingLock</tt>.
+     *
+     * @param	ppn	the physical page to release.
+     */
+    void releaseFrame(int ppn) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	if (coreMap[ppn].standby) {
+	    coreMap[ppn].standby = false;
+	    standbyFrames.remove((Integer) ppn);
+	}
+
+	coreMap[ppn].process = null;
+	freePage(ppn);
+    }
+
+    /**
+     * Record which pages the running process used since the last timer
+     * interrupt. Called by the timer interrupt handler when the page
+     * replacement policy needs sampled times of use.
+     */
+    private void sampleWorkingSet() {
+	UserProcess current = currentProcess();
+	if (current instanceof VMProcess)
+	    ((VMProcess) current).sampleWorkingSet();
+    }
+
+    /**
+     * Return the core map entry for the specified physical page.
+     */
+    Frame getFrame(int ppn) {
+	return coreMap[ppn];
+    }
+
+    /**
+     * The owner of a physical page.
+     */
+    static class Frame {
+	/** The process the page belongs to, or <tt>null</tt> if free. */
+	VMProcess process = null;
+	/** The virtual page mapped to the page. */
+	int vpn;
+	/** True if the page was prefetched and is not mapped yet. */
+	boolean standby = false;
+	/** True while an eviction passes over the page, because it is dirty
+	 *  and its mapped file can't be written. */
+	boolean kept = false;
+	/** The sampled time of last use, in the owner's virtual time. */
+	long lastUse = 0;
+	/** The sampled time of last use, in simulated ticks. */
+	long lastUseTime = 0;
+    }
+
+    /**
+     * Serializes page faults, evictions and accesses to the core map and the
+     * swap file.
+     */
+    static Lock pagingLock;
+
+    /** The ASID-tagged shadow of the TLB. */
+    static TLBShadow tlb;
+
+    /** The swap file. */
+    static SwapFile swapFile;
+
+    /**
+     * The in-memory store of compressed evicted pages, or <tt>null</tt> if
+     * evicted pages go straight to the swap file.
+     */
+    static CompressedPageStore pageStore = null;
+
+    /** The total number of pages read from the swap file. */
+    static int numPageIns = 0;
+    /** The total number of pages written to the swap file. */
+    static int numPageOuts = 0;
+
+    /**
+     * The maximum number of adjacent swap pages read by one page-in once a
+     * process faults sequentially.
+     */
+    static int pageInCluster;
+
+    private Frame[] coreMap;
+    private PageReplacement replacement;
+    private int residentLimit;
+    private int suspendTicks;
+    private int numSuspensions = 0;
+    private int numWriteBackFailures = 0;
+
+    /** Prefetched pages that are not mapped yet, oldest first. */
+    private LinkedList<Integer> standbyFrames = new LinkedList<Integer>();
+    private int numPrefetched = 0, numPrefetchHits = 0;
+
+    private static final String defaultSwapFileName = "nachos.swp";
+    private static final int defaultPageInCluster = 4;
+    private static final int defaultSuspendTicks = 5000;
+    private static final int defaultCompressedPoolSize = 0;
+    private static final int maxSuspensions = 4;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
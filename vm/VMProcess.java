@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -18,10 +20,12 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. The TLB is left intact; it is
+     * only reloaded if a different address space runs next.
      */
     public void saveState() {
-	super.saveState();
+	if (!Machine.processor().hasTLB())
+	    super.saveState();
     }
 
     /**
@@ -29,25 +33,786 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	if (!Machine.processor().hasTLB())
+	    super.restoreState();
+	else if (asid != -1)
+	    VMKernel.tlb.switchTo(asid);
+    }
+
+    /**
+     * Transfer data from this process's virtual memory to the specified
+     * array, paging in any non-resident pages. Holds the paging lock for the
+     * whole transfer, so that no page can be evicted while it is copied.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset,
+				 int length) {
+	VMKernel.pagingLock.acquire();
+	int amount = super.readVirtualMemory(vaddr, data, offset, length);
+	VMKernel.pagingLock.release();
+
+	return amount;
+    }
+
+    /**
+     * Transfer data from the specified array to this process's virtual
+     * memory, paging in any non-resident pages. Holds the paging lock for the
+     * whole transfer, so that no page can be evicted while it is copied.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length) {
+	VMKernel.pagingLock.acquire();
+	int amount = super.writeVirtualMemory(vaddr, data, offset, length);
+	VMKernel.pagingLock.release();
+
+	return amount;
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. No physical memory is allocated here; every page starts
+     * out invalid and is loaded by the page fault handler on first touch.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	pageSection = new CoffSection[numPages];
+	swapSlot = new int[numPages];
+	standbyFrame = new int[numPages];
+	mappedPage = new Mapping[numPages];
+	sharedPage = new boolean[numPages];
+	mapBase = numPages;
+
+	if (Machine.processor().hasTLB())
+	    asid = VMKernel.tlb.allocateASID(this);
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+	    swapSlot[vpn] = -1;
+	    standbyFrame[vpn] = -1;
+	}
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tmapping " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN() + i;
+
+		pageTable[vpn].readOnly = section.isReadOnly();
+		pageSection[vpn] = section;
+	    }
+	}
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	VMKernel.pagingLock.acquire();
+
+	if (asid != -1) {
+	    VMKernel.tlb.freeASID(asid);
+	    asid = -1;
+	}
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    releasePage(vpn);
+	    mappedPage[vpn] = null;
+	}
+
+	VMKernel.pagingLock.release();
+
+	Lib.debug(dbgVM, "\tpeak resident pages " + peakResidentPages
+		  + ", page-ins " + numPageIns
+		  + ", page-outs " + numPageOuts
+		  + ", faults " + numFaults + " in " + virtualTime
+		  + " ticks of virtual time");
+
+	coff.close();
+    }
+
+    /**
+     * Release the memory and swap space used by a range of pages, such as
+     * the stack of a thread that has exited.
+     */
+    protected void releasePages(int firstVPN, int count) {
+	VMKernel.pagingLock.acquire();
+
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++)
+	    releasePage(vpn);
+
+	VMKernel.pagingLock.release();
+    }
+
+    /**
+     * Release the physical page, standby page, swap slot, and compressed copy
+     * of a virtual page, leaving it as it was before it was first touched.
+     * The caller must hold the paging lock.
+     */
+    private void releasePage(int vpn) {
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+
+	if (pageTable[vpn].valid && !sharedPage[vpn]) {
+	    if (asid != -1)
+		VMKernel.tlb.invalidate(asid, vpn);
+
+	    kernel.releaseFrame(pageTable[vpn].ppn);
+	    pageTable[vpn].valid = false;
+	    residentPages--;
+	}
+	pageTable[vpn].dirty = false;
+	pageTable[vpn].used = false;
+	if (standbyFrame[vpn] != -1) {
+	    kernel.releaseFrame(standbyFrame[vpn]);
+	    standbyFrame[vpn] = -1;
+	}
+	if (swapSlot[vpn] != -1) {
+	    VMKernel.swapFile.free(swapSlot[vpn]);
+	    swapSlot[vpn] = -1;
+	}
+	if (VMKernel.pageStore != null)
+	    VMKernel.pageStore.discard(this, vpn);
+    }
+
+    /**
+     * Translate a virtual page number for a kernel access, first loading the
+     * page if it is not resident. The caller must hold the paging lock.
+     */
+    protected int translate(int vpn, int mode) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+
+	if (vpn < 0 || vpn >= numPages)
+	    return -1;
+
+	if (!pageTable[vpn].valid && !pageIn(vpn))
+	    return -1;
+
+	return super.translate(vpn, mode);
+    }
+
+    /**
+     * Return the page table entry for the specified virtual page.
+     */
+    TranslationEntry getEntry(int vpn) {
+	if (vpn < 0 || vpn >= numPages)
+	    return null;
+
+	return pageTable[vpn];
+    }
+
+    /**
+     * Test and clear the used bit of the specified resident page, including
+     * any accesses recorded only in the TLB. Called by the page replacement
+     * algorithm with the paging lock held.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page was used since the last call.
+     */
+    boolean testAndClearUsed(int vpn) {
+	if (asid != -1)
+	    VMKernel.tlb.sync(asid, vpn);
+
+	boolean used = pageTable[vpn].used;
+	pageTable[vpn].used = false;
+	return used;
+    }
+
+    /**
+     * Advance this process's virtual time by one tick, and record the time
+     * of use of every page it used since the last tick. Called by the kernel
+     * at timer interrupts, while this process is running.
+     */
+    void sampleWorkingSet() {
+	if (asid == -1)
+	    return;
+
+	virtualTime++;
+	VMKernel.tlb.syncAll(asid);
+
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+	long now = Machine.timer().getTime();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry.valid && entry.used) {
+		VMKernel.Frame frame = kernel.getFrame(entry.ppn);
+		frame.lastUse = virtualTime;
+		frame.lastUseTime = now;
+		entry.used = false;
+	    }
+	}
+    }
+
+    /**
+     * Return the virtual time of this process: the number of timer
+     * interrupts that occurred while it was running.
+     */
+    long getVirtualTime() {
+	return virtualTime;
+    }
+
+    /**
+     * Return the number of pages of this process currently in memory.
+     */
+    int getResidentPages() {
+	return residentPages;
+    }
+
+    /**
+     * Test whether this process is suspended by the kernel's load control.
+     */
+    boolean isSuspended() {
+	return suspended;
+    }
+
+    void setSuspended(boolean suspended) {
+	this.suspended = suspended;
+    }
+
+    /**
+     * Test whether the specified resident page has been written since it was
+     * loaded, including writes recorded only in the TLB. Called by the
+     * kernel with the paging lock held.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if evicting the page requires writing it to swap.
+     */
+    boolean isDirty(int vpn) {
+	if (asid != -1)
+	    VMKernel.tlb.sync(asid, vpn);
+
+	return pageTable[vpn].dirty;
+    }
+
+    /**
+     * Load the specified virtual page into physical memory, evicting another
+     * page if necessary. A page that was prefetched is mapped without any
+     * I/O, and a page held by the compressed page store is decompressed. A
+     * page that has been written to swap is read back from the swap file,
+     * together with the following pages if this process is faulting
+     * sequentially. Pages of a memory-mapped file are read from the file.
+     * Otherwise, pages that belong to a COFF section are read from the
+     * executable, and all other pages (heap, stack and arguments) are zero-filled.
+     * The caller must hold the paging lock.
+     *
+     * @param	vpn	the virtual page to load.
+     * @return	<tt>true</tt> if the page was loaded.
+     */
+    private boolean pageIn(int vpn) {
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+
+	// pages past the thread stacks are only usable if a file is mapped
+	// there; below them, the guard pages and the heap past the break are
+	// not usable at all
+	if (vpn >= mapBase ? mappedPage[vpn] == null : !isUsable(vpn))
+	    return false;
+
+	boolean sequential = (vpn == lastFaultVPN+1);
+	lastFaultVPN = vpn;
+	numFaults++;
+
+	int ppn = standbyFrame[vpn];
+	if (ppn != -1) {
+	    Lib.debug(dbgVM, "\tpage " + vpn + " <- standby " + ppn);
+	    standbyFrame[vpn] = -1;
+	    kernel.mapStandbyFrame(ppn);
+	    mapPage(vpn, ppn);
+	    return true;
+	}
+
+	ppn = kernel.allocateFrame(this, vpn);
+	if (ppn == -1)
+	    return false;
+
+	if (VMKernel.pageStore != null &&
+	    VMKernel.pageStore.load(this, vpn, ppn)) {
+	    Lib.debug(dbgVM, "\tpage " + vpn + " <- compressed store");
+	    mapPage(vpn, ppn);
+	    // the store no longer has a copy, so it must be saved if evicted
+	    pageTable[vpn].dirty = true;
+	    return true;
+	}
+
+	CoffSection section = pageSection[vpn];
+	if (mappedPage[vpn] != null) {
+	    if (!mappedPage[vpn].readPage(vpn, ppn)) {
+		kernel.releaseFrame(ppn);
+		return false;
+	    }
+	}
+	else if (swapSlot[vpn] != -1) {
+	    if (!swapIn(vpn, ppn, sequential ? VMKernel.pageInCluster : 1)) {
+		kernel.releaseFrame(ppn);
+		return false;
+	    }
+	}
+	else if (section != null) {
+	    Lib.debug(dbgVM, "\tpage " + vpn + " <- " + section.getName());
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+	else {
+	    Lib.debug(dbgVM, "\tpage " + vpn + " <- zero-fill");
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+
+	mapPage(vpn, ppn);
+	return true;
+    }
+
+    /**
+     * Read a page from swap into the specified physical page. Up to
+     * <tt>cluster-1</tt> following pages whose swap slots are adjacent are
+     * read by the same file access, into standby pages.
+     */
+    private boolean swapIn(int vpn, int ppn, int cluster) {
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+
+	int count = 1;
+	while (count < cluster && vpn+count < numPages) {
+	    int next = vpn+count;
+	    if (pageTable[next].valid || standbyFrame[next] != -1 ||
+		swapSlot[next] != swapSlot[vpn]+count)
+		break;
+	    count++;
+	}
+
+	int[] ppns = new int[count];
+	ppns[0] = ppn;
+	for (int i=1; i<count; i++) {
+	    ppns[i] = kernel.allocateStandbyFrame(this, vpn+i);
+	    if (ppns[i] == -1) {
+		count = i;
+		break;
+	    }
+	    standbyFrame[vpn+i] = ppns[i];
+	}
+	if (count < ppns.length)
+	    ppns = Arrays.copyOf(ppns, count);
+
+	Lib.debug(dbgVM, "\tpages " + vpn + "-" + (vpn+count-1) + " <- swap "
+		  + swapSlot[vpn]);
+
+	if (!VMKernel.swapFile.read(swapSlot[vpn], ppns)) {
+	    for (int i=1; i<count; i++) {
+		standbyFrame[vpn+i] = -1;
+		kernel.releaseFrame(ppns[i]);
+	    }
+	    return false;
+	}
+
+	numPageIns += count;
+	VMKernel.numPageIns += count;
+	return true;
+    }
+
+    /**
+     * Discard a prefetched page that was never mapped. Called by the kernel
+     * with the paging lock held when it reclaims the physical page.
+     *
+     * @param	vpn	the virtual page that was prefetched.
+     */
+    void discardStandby(int vpn) {
+	Lib.debug(dbgVM, "\tstandby page " + vpn + " discarded");
+	standbyFrame[vpn] = -1;
+    }
+
+    private void mapPage(int vpn, int ppn) {
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+
+	residentPages++;
+	peakResidentPages = Math.max(peakResidentPages, residentPages);
+    }
+
+    /**
+     * Write a page spilled by the compressed page store to the swap file.
+     * Called by the store with the paging lock held.
+     *
+     * @param	vpn	the virtual page.
+     * @param	contents	the decompressed contents of the page.
+     */
+    void spill(int vpn, byte[] contents) {
+	swapSlot[vpn] = VMKernel.swapFile.allocate(preferredSwapSlot(vpn));
+
+	Lib.debug(dbgVM, "\tpage " + vpn + " -> swap " + swapSlot[vpn]
+		  + " (spilled)");
+	Lib.assertTrue(VMKernel.swapFile.write(swapSlot[vpn], contents),
+		       "swap file write failed");
+
+	numPageOuts++;
+	VMKernel.numPageOuts++;
+    }
+
+    /**
+     * Return the swap slot following that of the previous virtual page, so
+     * that runs of pages are kept in runs of slots and can be read together.
+     */
+    private int preferredSwapSlot(int vpn) {
+	return (vpn > 0 && swapSlot[vpn-1] != -1) ? swapSlot[vpn-1]+1 : -1;
+    }
+
+    /**
+     * Evict the specified resident page. Dirty pages are compressed into the
+     * compressed page store if they fit, or else written to the swap file;
+     * clean pages are dropped, since they can be reloaded from swap,
+     * the executable, or by zero-filling. Called by the kernel with the
+     * paging lock held.
+     *
+     * @param	vpn	the virtual page to evict.
+     * @return	<tt>true</tt> if the page was evicted, or <tt>false</tt> if
+     *		it is a dirty page of a mapped file that could not be written
+     *		back, in which case it stays resident and dirty.
+     */
+    boolean evict(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	// the TLB may hold the only record that this page is dirty
+	if (asid != -1)
+	    VMKernel.tlb.invalidate(asid, vpn);
+
+	if (entry.dirty && mappedPage[vpn] != null &&
+	    !mappedPage[vpn].writePage(vpn, entry.ppn)) {
+	    Lib.debug(dbgVM, "	page " + vpn + " kept: mapped file write failed");
+	    return false;
+	}
+
+	entry.valid = false;
+	residentPages--;
+
+	if (!entry.dirty) {
+	    Lib.debug(dbgVM, "\tpage " + vpn + " dropped");
+	    return true;
+	}
+
+	// written back above
+	if (mappedPage[vpn] != null) {
+	    entry.dirty = false;
+	    return true;
+	}
+
+	if (VMKernel.pageStore != null) {
+	    // the swap copy is stale now; free the slot so a spill or the
+	    // fallback below can reuse it
+	    int oldSlot = swapSlot[vpn];
+	    if (oldSlot != -1) {
+		VMKernel.swapFile.free(oldSlot);
+		swapSlot[vpn] = -1;
+	    }
+
+	    long lastUse =
+		((VMKernel) Kernel.kernel).getFrame(entry.ppn).lastUseTime;
+	    if (VMKernel.pageStore.store(this, vpn, entry.ppn, lastUse)) {
+		Lib.debug(dbgVM, "\tpage " + vpn + " -> compressed store");
+		entry.dirty = false;
+		return true;
+	    }
+
+	    if (oldSlot != -1)
+		swapSlot[vpn] = VMKernel.swapFile.allocate(oldSlot);
+	}
+
+	if (swapSlot[vpn] == -1)
+	    swapSlot[vpn] = VMKernel.swapFile.allocate(preferredSwapSlot(vpn));
+
+	Lib.debug(dbgVM, "\tpage " + vpn + " -> swap " + swapSlot[vpn]);
+	Lib.assertTrue(VMKernel.swapFile.write(swapSlot[vpn], entry.ppn),
+		       "swap file write failed");
+
+	entry.dirty = false;
+	numPageOuts++;
+	VMKernel.numPageOuts++;
+	return true;
+    }
+
+    /**
+     * Handle the mmap() system call. Maps the whole file referred to by a file
+     * descriptor at a page-aligned address past the end of the stack, where
+     * no other file is mapped. No page
+     * is read until it is touched. Until the descriptor is closed,
+     * <tt>read()</tt> and <tt>write()</tt> on it fail.
+     *
+     * @param	fileDescriptor	the file to map.
+     * @param	address	the virtual address to map the file at.
+     * @return	the length of the file, or -1 on failure.
+     */
+    protected int handleMmap(int fileDescriptor, int address) {
+	if (fileDescriptor < 0 || fileDescriptor >= fileTable.length ||
+	    fileTable[fileDescriptor] == null)
+	    return -1;
+
+	// the file table may have grown since the last mapping
+	if (fileMapping.length < fileTable.length)
+	    fileMapping = Arrays.copyOf(fileMapping, fileTable.length);
+	if (fileMapping[fileDescriptor] != null)
+	    return -1;
+
+	OpenFile file = fileTable[fileDescriptor];
+	int length = file.length();
+	if (length < 0 || address < 0 || Processor.offsetFromAddress(address) != 0)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(address);
+	int count = (length + pageSize - 1) / pageSize;
+	if (firstVPN < mapBase || firstVPN + count > maxMappedPages)
+	    return -1;
+
+	// a file that refuses writes is mapped read-only
+	boolean readOnly = (file.write(0, new byte[0], 0, 0) != 0);
+
+	Mapping mapping = new Mapping(file, firstVPN, count, length);
+
+	VMKernel.pagingLock.acquire();
+
+	for (int vpn=firstVPN; vpn<Math.min(firstVPN+count, numPages); vpn++) {
+	    if (mappedPage[vpn] != null || sharedPage[vpn]) {
+		VMKernel.pagingLock.release();
+		return -1;
+	    }
+	}
+
+	growAddressSpace(firstVPN + count);
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++) {
+	    mappedPage[vpn] = mapping;
+	    pageTable[vpn].readOnly = readOnly;
+	}
+	fileMapping[fileDescriptor] = mapping;
+
+	VMKernel.pagingLock.release();
+
+	Lib.debug(dbgVM, "\tmapped " + file.getName() + " at page " + firstVPN
+		  + " (" + count + " pages" + (readOnly ? ", read-only)" : ")"));
+
+	return length;
+    }
+
+    /**
+     * Close a file descriptor, first writing back and unmapping any file
+     * mapped through it.
+     */
+    protected int handleClose(int fileDescriptor) {
+	if (fileDescriptor >= 0 && fileDescriptor < fileMapping.length &&
+	    fileMapping[fileDescriptor] != null) {
+	    unmap(fileMapping[fileDescriptor]);
+	    fileMapping[fileDescriptor] = null;
+	}
+
+	return super.handleClose(fileDescriptor);
+    }
+
+    /**
+     * Map the pages of a shared memory segment past the stacks, where no file
+     * is mapped. The pages are always resident and are never evicted, since
+     * they belong to no process.
+     */
+    protected boolean attachPages(int firstVPN, SharedMemory.Segment segment) {
+	int count = segment.getNumPages();
+	if (firstVPN < mapBase || firstVPN + count > maxMappedPages)
+	    return false;
+
+	VMKernel.pagingLock.acquire();
+
+	for (int vpn=firstVPN; vpn<Math.min(firstVPN+count, numPages); vpn++) {
+	    if (mappedPage[vpn] != null || sharedPage[vpn]) {
+		VMKernel.pagingLock.release();
+		return false;
+	    }
+	}
+
+	growAddressSpace(firstVPN + count);
+	for (int i=0; i<count; i++) {
+	    TranslationEntry entry = pageTable[firstVPN+i];
+	    entry.ppn = segment.getPPN(i);
+	    entry.valid = true;
+	    entry.readOnly = false;
+	    entry.used = false;
+	    entry.dirty = false;
+	    sharedPage[firstVPN+i] = true;
+	}
+
+	VMKernel.pagingLock.release();
+	return true;
+    }
+
+    /**
+     * Remove the pages of a shared memory segment from the address space.
+     */
+    protected void detachPages(int firstVPN, int count) {
+	VMKernel.pagingLock.acquire();
+
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++) {
+	    if (asid != -1)
+		VMKernel.tlb.invalidate(asid, vpn);
+
+	    pageTable[vpn].valid = false;
+	    sharedPage[vpn] = false;
+	}
+
+	VMKernel.pagingLock.release();
+    }
+
+    /**
+     * Return the file a read or write syscall should use, or <tt>null</tt>
+     * if a file is mapped through the descriptor.
+     */
+    protected OpenFile fileForTransfer(int fileDescriptor) {
+	if (fileDescriptor >= 0 && fileDescriptor < fileMapping.length &&
+	    fileMapping[fileDescriptor] != null)
+	    return null;
+
+	return super.fileForTransfer(fileDescriptor);
+    }
+
+    /**
+     * Write the dirty pages of a mapping back to its file and remove the
+     * pages from the address space.
+     */
+    private void unmap(Mapping mapping) {
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+
+	VMKernel.pagingLock.acquire();
+
+	for (int vpn=mapping.firstVPN; vpn<mapping.firstVPN+mapping.numPages;
+	     vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry.valid) {
+		if (isDirty(vpn))
+		    mapping.writePage(vpn, entry.ppn);
+		if (asid != -1)
+		    VMKernel.tlb.invalidate(asid, vpn);
+
+		kernel.releaseFrame(entry.ppn);
+		entry.valid = false;
+		residentPages--;
+	    }
+
+	    entry.readOnly = false;
+	    mappedPage[vpn] = null;
+	}
+
+	VMKernel.pagingLock.release();
+
+	UserKernel.coffCache.invalidate(mapping.file.getName());
+    }
+
+    /**
+     * Extend the page table and the per-page state to cover the specified
+     * number of pages. The new pages are invalid and can't be paged in until
+     * a file is mapped there. The caller must hold the paging lock.
+     */
+    private void growAddressSpace(int newNumPages) {
+	if (newNumPages <= numPages)
+	    return;
+
+	TranslationEntry[] newPageTable =
+	    Arrays.copyOf(pageTable, newNumPages);
+	for (int vpn=numPages; vpn<newNumPages; vpn++)
+	    newPageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						     false, false);
+
+	pageSection = Arrays.copyOf(pageSection, newNumPages);
+	mappedPage = Arrays.copyOf(mappedPage, newNumPages);
+	sharedPage = Arrays.copyOf(sharedPage, newNumPages);
+	swapSlot = Arrays.copyOf(swapSlot, newNumPages);
+	standbyFrame = Arrays.copyOf(standbyFrame, newNumPages);
+	Arrays.fill(swapSlot, numPages, newNumPages, -1);
+	Arrays.fill(standbyFrame, numPages, newNumPages, -1);
+
+	pageTable = newPageTable;
+	if (!Machine.processor().hasTLB())
+	    Machine.processor().setPageTable(pageTable);
+	numPages = newNumPages;
+    }
+
+    /**
+     * A file mapped into the address space by mmap().
+     */
+    private class Mapping {
+	Mapping(OpenFile file, int firstVPN, int numPages, int length) {
+	    this.file = file;
+	    this.firstVPN = firstVPN;
+	    this.numPages = numPages;
+	    this.length = length;
+	}
+
+	/**
+	 * Read the part of the file mapped at a virtual page into a physical
+	 * page, zero-filling past the end of the file.
+	 */
+	boolean readPage(int vpn, int ppn) {
+	    byte[] memory = Machine.processor().getMemory();
+	    int pos = (vpn-firstVPN)*pageSize;
+	    int amount = Math.min(pageSize, length-pos);
+
+	    Lib.debug(dbgVM, "\tpage " + vpn + " <- " + file.getName());
+
+	    if (file.read(pos, memory, ppn*pageSize, amount) != amount)
+		return false;
+
+	    Arrays.fill(memory, ppn*pageSize+amount, (ppn+1)*pageSize,
+			(byte) 0);
+	    numPageIns++;
+	    return true;
+	}
+
+	/**
+	 * Write a physical page back to the part of the file mapped at a
+	 * virtual page. Bytes past the end of the file are not written.
+	 */
+	boolean writePage(int vpn, int ppn) {
+	    byte[] memory = Machine.processor().getMemory();
+	    int pos = (vpn-firstVPN)*pageSize;
+	    int amount = Math.min(pageSize, length-pos);
+
+	    Lib.debug(dbgVM, "\tpage " + vpn + " -> " + file.getName());
+
+	    numPageOuts++;
+	    return file.write(pos, memory, ppn*pageSize, amount) == amount;
+	}
+
+	OpenFile file;
+	int firstVPN, numPages, length;
+    }
+
+    /**
+     * Handle a page fault or TLB miss at the specified virtual address.
+     *
+     * @param	vaddr	the virtual address that caused the fault.
+     * @return	<tt>true</tt> if the faulting instruction can be restarted.
+     */
+    private boolean handlePageFault(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn < 0 || vpn >= numPages)
+	    return false;
+
+	// a TLB miss on a resident page does not block, so it can't race
+	if (pageTable[vpn].valid && asid != -1) {
+	    VMKernel.tlb.refill(asid, pageTable[vpn]);
+	    return true;
+	}
+
+	((VMKernel) Kernel.kernel).admit(this);
+
+	VMKernel.pagingLock.acquire();
+
+	boolean resident = pageTable[vpn].valid || pageIn(vpn);
+	if (resident && asid != -1)
+	    VMKernel.tlb.refill(asid, pageTable[vpn]);
+
+	VMKernel.pagingLock.release();
+
+	return resident;
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,13 +826,56 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	case Processor.exceptionPageFault:
+	    if (!handlePageFault(processor.readRegister(Processor.regBadVAddr))) {
+		Lib.debug(dbgVM, "\tunrecoverable " +
+			  Processor.exceptionNames[cause]);
+		terminate();
+	    }
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /** The COFF section backing each virtual page, or <tt>null</tt>. */
+    private CoffSection[] pageSection;
+    /** The swap slot holding each virtual page, or -1. */
+    private int[] swapSlot;
+    /** The standby physical page prefetched for each virtual page, or -1. */
+    private int[] standbyFrame;
+    /** The virtual page of the last page fault, to detect sequential access. */
+    private int lastFaultVPN = -2;
+
+    /** The number of pages of this process currently in memory. */
+    private int residentPages = 0;
+    private int peakResidentPages = 0;
+    private int numPageIns = 0, numPageOuts = 0;
+    private int numFaults = 0;
+
+    /** The mapping each page belongs to, or <tt>null</tt>. */
+    private Mapping[] mappedPage;
+    /** True for each page of an attached shared memory segment. */
+    private boolean[] sharedPage;
+    /** The mapping made through each file descriptor, or <tt>null</tt>. */
+    private Mapping[] fileMapping = new Mapping[fileTable.length];
+    /** The first page past the stack and arguments. */
+    private int mapBase;
+
+    /** The number of timer interrupts that occurred while this ran. */
+    private long virtualTime = 0;
+    /** True while the kernel's load control keeps this from faulting. */
+    private boolean suspended = false;
+
+    /** The ASID of this process's address space, or -1. */
+    private int asid = -1;
+
     private static final int pageSize = Processor.pageSize;
+    /** The end of the region memory-mapped files can be placed in. */
+    private static final int maxMappedPages = 0x10000;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
 }
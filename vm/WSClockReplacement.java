@@ -0,0 +1,115 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The WSClock page replacement policy. The time of last use of each page is
+ * sampled at timer interrupts in the virtual time of its process (the number
+ * of timer interrupts the process has been running for). A page belongs to
+ * its process's working set if it was used within the last <i>tau</i> ticks
+ * of virtual time, where <i>tau</i> is the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.workingSetWindow</tt>.
+ *
+ * <p>
+ * The clock hand evicts the first clean page outside its working set. If
+ * there is none, it evicts a dirty page outside its working set, and if
+ * every page is in a working set, the least recently used one. Pages of
+ * suspended processes are never considered part of a working set.
+ *
+ * <p>
+ * A process about to fault is suspended if the working sets of all the
+ * running processes, plus the page it needs, do not fit in physical memory.
+ */
+public class WSClockReplacement extends PageReplacement {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockReplacement() {
+	super();
+
+	tau = Config.getInteger("VMKernel.workingSetWindow", defaultTau);
+    }
+
+    public int selectVictim(VMProcess owner) {
+	// if every candidate was used since the last scan, the second pass
+	// finds them all with their used bits cleared
+	for (int pass=0; pass<2; pass++) {
+	    int dirtyVictim = -1, oldestVictim = -1;
+	    long oldestAge = -1;
+
+	    for (int i=0; i<coreMap.length; i++) {
+		int ppn = clockHand;
+		clockHand = (clockHand+1) % coreMap.length;
+
+		VMKernel.Frame frame = coreMap[ppn];
+		if (!isCandidate(frame, owner))
+		    continue;
+
+		VMProcess process = frame.process;
+		if (process.testAndClearUsed(frame.vpn)) {
+		    frame.lastUse = process.getVirtualTime();
+		    continue;
+		}
+
+		long age = age(frame);
+		if (age > tau) {
+		    if (!process.isDirty(frame.vpn))
+			return ppn;
+		    if (dirtyVictim == -1)
+			dirtyVictim = ppn;
+		}
+		if (age > oldestAge) {
+		    oldestAge = age;
+		    oldestVictim = ppn;
+		}
+	    }
+
+	    if (dirtyVictim != -1)
+		return dirtyVictim;
+	    if (oldestVictim != -1)
+		return oldestVictim;
+	}
+
+	return -1;
+    }
+
+    public boolean usesSampling() {
+	return true;
+    }
+
+    public boolean shouldSuspend(VMProcess process) {
+	int workingSets = 1;
+	boolean othersRunning = false;
+
+	for (int ppn=0; ppn<coreMap.length; ppn++) {
+	    VMKernel.Frame frame = coreMap[ppn];
+	    if (frame.process == null || frame.standby ||
+		frame.process.isSuspended())
+		continue;
+
+	    if (frame.process != process)
+		othersRunning = true;
+
+	    if (age(frame) <= tau)
+		workingSets++;
+	}
+
+	// never suspend the only process that can make progress
+	return othersRunning && workingSets > coreMap.length;
+    }
+
+    private long age(VMKernel.Frame frame) {
+	if (frame.process.isSuspended())
+	    return Long.MAX_VALUE;
+
+	return frame.process.getVirtualTime() - frame.lastUse;
+    }
+
+    private int tau;
+    private int clockHand = 0;
+
+    private static final int defaultTau = 8;
+}